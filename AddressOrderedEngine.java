@@ -0,0 +1,185 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An allocation engine that keeps the free blocks in a balanced search tree,
+ * ordered by base address.
+ * <p>
+ * Because the tree is ordered by address, free finds the free blocks just before and
+ * just after the freed block in O(log n) time, and merges them with it immediately.
+ * The free blocks are therefore always fully coalesced, and defrag has nothing to do.
+ * malloc is first-fit in address order: it takes the free block with the lowest
+ * address that is large enough. The free blocks are also indexed by a max segment tree
+ * over the addresses, whose leaf for an address holds the length of the free block that
+ * starts there, so that block is found in O(log maxSize) time, without scanning the tree.
+ */
+public class AddressOrderedEngine implements MemoryEngine {
+
+	// The free blocks: maps the base address of each free block to its length
+	private TreeMap<Integer, Integer> freeTree = new TreeMap<Integer, Integer>();
+
+	// The free index: largest[1] is the root, largest[capacity + address] is the length of
+	// the free block that starts at the address (0 if none does), and every other entry is
+	// the larger of its two children
+	private int[] largest;
+
+	// The number of leaves of the free index, the smallest power of two not below maxSize
+	private int capacity;
+
+	// The allocated blocks: maps the base address of each allocated block to its length
+	private HashMap<Integer, Integer> allocated = new HashMap<Integer, Integer>();
+
+	// Total size of the memory space
+	private int maxSize;
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 */
+	public AddressOrderedEngine(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("Memory size must not be negative");
+		}
+		this.maxSize = maxSize;
+		capacity = (maxSize <= 1) ? 1 : Integer.highestOneBit(maxSize - 1) << 1;
+		largest = new int[2 * capacity];
+		if (maxSize > 0) {
+			putFree(0, maxSize);
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Allocates the first free block, in address order, whose length is at least the
+	 * given length. The block is split, and its tail remains in the free tree.
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		if (largest[1] < length) {
+			return -1;
+		}
+		int baseAddress = find(length);
+		int freeLength = removeFree(baseAddress);
+		if (freeLength > length) {
+			putFree(baseAddress + length, freeLength - length);
+		}
+		allocated.put(baseAddress, length);
+		return baseAddress;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, and merges
+	 * it with the adjacent free blocks. Addresses that are not allocated are ignored.
+	 */
+	public void free(int address) {
+		if (allocated.isEmpty()) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		Integer length = allocated.remove(address);
+		if (length == null) {
+			return;
+		}
+		int baseAddress = address;
+		int end = address + length;
+
+		// Merge with the free block that ends where this block begins
+		Map.Entry<Integer, Integer> left = freeTree.lowerEntry(address);
+		if (left != null && left.getKey() + left.getValue() == address) {
+			baseAddress = left.getKey();
+			removeFree(baseAddress);
+		}
+
+		// Merge with the free block that begins where this block ends
+		end += removeFree(end);
+
+		putFree(baseAddress, end - baseAddress);
+	}
+
+	/**
+	 * Shrinks the allocated block in place, and merges its tail with the free block that
+	 * follows it, if there is one.
+	 */
+	public boolean shrink(int address, int newLength) {
+		Integer length = allocated.get(address);
+		if (length == null) {
+			return false;
+		}
+		allocated.put(address, newLength);
+		int end = address + length;
+		end += removeFree(end);
+		putFree(address + newLength, end - (address + newLength));
+		return true;
+	}
+
+	public int allocatedLength(int address) {
+		Integer length = allocated.get(address);
+		return (length == null) ? -1 : length;
+	}
+
+	/**
+	 * Free blocks are coalesced as soon as they are freed, so there is nothing to do.
+	 */
+	public void defrag() {
+	}
+
+	public LinkedList freeBlocks() {
+		return toList(freeTree);
+	}
+
+	public LinkedList allocatedBlocks() {
+		return toList(new TreeMap<Integer, Integer>(allocated));
+	}
+
+	// Adds a free block to the tree and to the free index
+	private void putFree(int baseAddress, int length) {
+		freeTree.put(baseAddress, length);
+		update(baseAddress, length);
+	}
+
+	// Removes the free block that starts at the given address from the tree and from the
+	// free index, and returns its length, or 0 if no free block starts there
+	private int removeFree(int baseAddress) {
+		Integer length = freeTree.remove(baseAddress);
+		if (length == null) {
+			return 0;
+		}
+		update(baseAddress, 0);
+		return length;
+	}
+
+	// Returns the lowest address where a free block of at least the given length starts,
+	// descending from the root, which must be at least the given length
+	private int find(int length) {
+		int i = 1;
+		while (i < capacity) {
+			i = (largest[2 * i] >= length) ? 2 * i : 2 * i + 1;
+		}
+		return i - capacity;
+	}
+
+	// Sets the leaf of the given address, and computes its ancestors again
+	private void update(int address, int length) {
+		int i = capacity + address;
+		largest[i] = length;
+		for (i >>>= 1; i >= 1; i >>>= 1) {
+			largest[i] = Math.max(largest[2 * i], largest[2 * i + 1]);
+		}
+	}
+
+	// Returns a list of blocks for the given (base address, length) entries
+	private static LinkedList toList(Map<Integer, Integer> blocks) {
+		LinkedList list = new LinkedList();
+		for (Map.Entry<Integer, Integer> entry : blocks.entrySet()) {
+			list.addLast(new MemoryBlock(entry.getKey(), entry.getValue()));
+		}
+		return list;
+	}
+}
@@ -0,0 +1,23 @@
+/**
+ * The best-fit placement policy: malloc takes the smallest free block which is large
+ * enough, and the block with the lowest address among blocks of that length.
+ */
+public class BestFitPolicy extends SizeIndexedPolicy {
+
+	public Node select(LinkedList freeList, int length) {
+		return nodeOf(bySize.ceilingEntry(key(0, length)));
+	}
+
+	/**
+	 * Takes the smallest free block which holds the aligned block. Blocks which are long
+	 * enough but lose too many words to the alignment are skipped.
+	 */
+	public Node selectAligned(LinkedList freeList, int length, int alignment) {
+		for (Node node : bySize.tailMap(key(0, length), true).values()) {
+			if (PlacementPolicy.fitsAligned(node.block, length, alignment)) {
+				return node;
+			}
+		}
+		return null;
+	}
+}
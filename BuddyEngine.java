@@ -0,0 +1,267 @@
+/**
+ * A binary buddy allocation engine.
+ * <p>
+ * Every block has a power-of-two length and starts at an address which is a multiple
+ * of its length. A block of order k (length 2^k) is split into two buddies of order
+ * k-1, and two free buddies are merged back into their parent as soon as the second
+ * one is freed. For every order, a bitmap records which blocks of that order are free,
+ * so splitting and merging only test and flip bits, and no list ever has to be sorted.
+ * Above every bitmap, summary bitmaps record which of its words are not empty, one bit
+ * per word, up to a single word, so the lowest free block of an order is found by
+ * descending through O(log maxSize) words.
+ * <p>
+ * A request is rounded up to the next power of two. The allocated blocks reported
+ * by allocatedBlocks have the requested lengths, so the words between a request and
+ * its power of two are reported neither as free nor as allocated (internal fragmentation).
+ */
+public class BuddyEngine implements MemoryEngine {
+
+	// For every order k, a bitmap of the free blocks of length 2^k, by block index
+	private long[][] freeBits;
+
+	// For every order, the number of free blocks of that order
+	private int[] freeCounts;
+
+	// For every order k, the summaries of its bitmap: level 0 has a bit for every word of
+	// freeBits[k] that is not empty, and every further level has a bit for every word of
+	// the level below it that is not empty. The last level is a single word.
+	private long[][][] summaries;
+
+	// The allocated blocks (with their requested lengths), by base address
+	private IntHashMap<MemoryBlock> allocated = new IntHashMap<MemoryBlock>();
+
+	// The order of the largest block that fits in the memory space
+	private int maxOrder;
+
+	// Total size of the memory space
+	private int maxSize;
+
+	/**
+	 * Constructs a new buddy engine that manages a memory space of a given maximal size.
+	 * If the size is not a power of two, the memory space starts as several free blocks,
+	 * one for each bit of the size.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 */
+	public BuddyEngine(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("Memory size must not be negative");
+		}
+		this.maxSize = maxSize;
+		maxOrder = (maxSize == 0) ? 0 : 31 - Integer.numberOfLeadingZeros(maxSize);
+		freeBits = new long[maxOrder + 1][];
+		freeCounts = new int[maxOrder + 1];
+		summaries = new long[maxOrder + 1][][];
+		for (int k = 0; k <= maxOrder; k++) {
+			int blocks = (maxSize >>> k) + 1;
+			freeBits[k] = new long[(blocks + 63) >>> 6];
+			int levels = 1;
+			for (int words = (freeBits[k].length + 63) >>> 6; words > 1; words = (words + 63) >>> 6) {
+				levels++;
+			}
+			summaries[k] = new long[levels][];
+			int words = freeBits[k].length;
+			for (int level = 0; level < levels; level++) {
+				words = (words + 63) >>> 6;
+				summaries[k][level] = new long[words];
+			}
+		}
+
+		// Covers the memory space with the largest aligned blocks that fit in it
+		int address = 0;
+		for (int k = maxOrder; k >= 0; k--) {
+			if ((maxSize & (1 << k)) != 0) {
+				setFree(k, address >>> k);
+				address += 1 << k;
+			}
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Allocates a block of the smallest order that can hold the given length.
+	 * If no block of that order is free, the smallest larger free block is split
+	 * in halves until a block of the right order is obtained.
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		if (length > maxSize) {
+			return -1;
+		}
+		int order = orderOf(length);
+		if (order > maxOrder) {
+			return -1;
+		}
+
+		// Finds the smallest order that has a free block
+		int k = order;
+		while (k <= maxOrder && freeCounts[k] == 0) {
+			k++;
+		}
+		if (k > maxOrder) {
+			return -1;
+		}
+		int index = takeFree(k);
+
+		// Splits the block, keeping the left half and freeing the right half
+		while (k > order) {
+			k--;
+			index <<= 1;
+			setFree(k, index + 1);
+		}
+
+		int baseAddress = index << order;
+		allocated.put(baseAddress, new MemoryBlock(baseAddress, length));
+		return baseAddress;
+	}
+
+	/**
+	 * Frees the block whose base address equals the given address, and merges it
+	 * with its buddy for as long as the buddy is free. Addresses that are not
+	 * allocated are ignored.
+	 */
+	public void free(int address) {
+		if (allocated.isEmpty()) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		MemoryBlock block = allocated.remove(address);
+		if (block == null) {
+			return;
+		}
+		int k = orderOf(block.getLength());
+		int index = address >>> k;
+		while (k < maxOrder && isFree(k, index ^ 1)) {
+			clearFree(k, index ^ 1);
+			index >>>= 1;
+			k++;
+		}
+		setFree(k, index);
+	}
+
+	/**
+	 * Buddies are merged as soon as they are freed, so there is nothing to do.
+	 */
+	public void defrag() {
+	}
+
+	/**
+	 * Returns the free blocks, in address order.
+	 */
+	public LinkedList freeBlocks() {
+		int count = 0;
+		for (int k = 0; k <= maxOrder; k++) {
+			count += freeCounts[k];
+		}
+
+		// Packs every block as (base address, length), so that sorting orders them by address
+		long[] blocks = new long[count];
+		int n = 0;
+		for (int k = 0; k <= maxOrder; k++) {
+			long[] bits = freeBits[k];
+			for (int w = 0; w < bits.length; w++) {
+				long word = bits[w];
+				while (word != 0) {
+					int index = (w << 6) + Long.numberOfTrailingZeros(word);
+					blocks[n++] = ((long) (index << k) << 32) | (1L << k);
+					word &= word - 1;
+				}
+			}
+		}
+		java.util.Arrays.sort(blocks);
+
+		LinkedList list = new LinkedList();
+		for (int i = 0; i < blocks.length; i++) {
+			list.addLast(new MemoryBlock((int) (blocks[i] >>> 32), (int) blocks[i]));
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the requested length of the block allocated at the given address.
+	 */
+	public int allocatedLength(int address) {
+		MemoryBlock block = allocated.get(address);
+		return (block == null) ? -1 : block.getLength();
+	}
+
+	/**
+	 * Returns the allocated blocks with their requested lengths, in address order.
+	 */
+	public LinkedList allocatedBlocks() {
+		int[] addresses = allocated.keys();
+		java.util.Arrays.sort(addresses);
+		LinkedList list = new LinkedList();
+		for (int i = 0; i < addresses.length; i++) {
+			MemoryBlock block = allocated.get(addresses[i]);
+			list.addLast(new MemoryBlock(block.getBaseAddress(), block.getLength()));
+		}
+		return list;
+	}
+
+	// Returns the order of the smallest block that can hold the given length
+	private static int orderOf(int length) {
+		return (length == 1) ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+	}
+
+	private boolean isFree(int order, int index) {
+		int w = index >>> 6;
+		long[] bits = freeBits[order];
+		return w < bits.length && (bits[w] & (1L << index)) != 0;
+	}
+
+	private void setFree(int order, int index) {
+		long[] bits = freeBits[order];
+		int w = index >>> 6;
+		boolean wasEmpty = bits[w] == 0;
+		bits[w] |= 1L << index;
+		freeCounts[order]++;
+		// Marks the word in the summaries, up to the first level where it was already marked
+		for (long[] summary : summaries[order]) {
+			if (!wasEmpty) {
+				break;
+			}
+			index = w;
+			w = index >>> 6;
+			wasEmpty = summary[w] == 0;
+			summary[w] |= 1L << index;
+		}
+	}
+
+	private void clearFree(int order, int index) {
+		long[] bits = freeBits[order];
+		int w = index >>> 6;
+		bits[w] &= ~(1L << index);
+		freeCounts[order]--;
+		// Unmarks the word in the summaries, up to the first level where it stays marked
+		boolean isEmpty = bits[w] == 0;
+		for (long[] summary : summaries[order]) {
+			if (!isEmpty) {
+				break;
+			}
+			index = w;
+			w = index >>> 6;
+			summary[w] &= ~(1L << index);
+			isEmpty = summary[w] == 0;
+		}
+	}
+
+	// Removes the lowest free block of the given order, which must have one, and returns its index
+	private int takeFree(int order) {
+		// Descends from the single word of the last summary to the bitmap, following the
+		// lowest marked word at every level
+		long[][] levels = summaries[order];
+		int w = 0;
+		for (int level = levels.length - 1; level >= 0; level--) {
+			w = (w << 6) + Long.numberOfTrailingZeros(levels[level][w]);
+		}
+		int index = (w << 6) + Long.numberOfTrailingZeros(freeBits[order][w]);
+		clearFree(order, index);
+		return index;
+	}
+}
@@ -0,0 +1,208 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Represents a managed memory space that may be used by several threads at once.
+ * <p>
+ * The address space is split into stripes of consecutive addresses. Each stripe is a
+ * separate MemorySpace with its own free list and allocated list, guarded by its own
+ * lock, so threads that work on different stripes never wait for each other. Every
+ * thread allocates from its home stripe, and moves on to the neighbouring stripes only
+ * when its home stripe cannot satisfy the request. A block is freed by the stripe that
+ * owns its address.
+ * <p>
+ * A block never crosses the boundary between two stripes, so no block can be longer
+ * than a stripe.
+ */
+public class ConcurrentMemorySpace {
+
+	// The stripes, and the locks that guard them
+	private final MemorySpace[] stripes;
+	private final ReentrantLock[] locks;
+
+	// The size of every stripe but the last, which also holds the remaining words
+	private final int stripeSize;
+
+	// Total size of the memory space
+	private final int maxSize;
+
+	// The number of every thread, given in the order in which the threads first malloc,
+	// which selects the thread's home stripe
+	private static final AtomicInteger nextThreadNumber = new AtomicInteger();
+	private static final ThreadLocal<Integer> threadNumber =
+			ThreadLocal.withInitial(nextThreadNumber::getAndIncrement);
+
+	/**
+	 * Constructs a new concurrent memory space of a given maximal size, split into
+	 * the given number of stripes.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 * @param stripeCount
+	 *        the number of independently locked stripes
+	 */
+	public ConcurrentMemorySpace(int maxSize, int stripeCount) {
+		if (stripeCount <= 0 || stripeCount > maxSize) {
+			throw new IllegalArgumentException("stripe count must be between 1 and the memory size");
+		}
+		this.maxSize = maxSize;
+		this.stripeSize = maxSize / stripeCount;
+		stripes = new MemorySpace[stripeCount];
+		locks = new ReentrantLock[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			int size = (i == stripeCount - 1) ? maxSize - i * stripeSize : stripeSize;
+			stripes[i] = new MemorySpace(size);
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Gets the size of this memory space
+	 * @return the size of the memory space, in words.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Gets the number of stripes of this memory space
+	 * @return the number of stripes.
+	 */
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Turns on proactive defragmentation in every stripe, as MemorySpace.setDefragThreshold.
+	 *
+	 * @param maxFreeBlocks
+	 *        the number of free blocks of a stripe above which free runs a defrag of the
+	 *        stripe, or 0 to turn proactive defragmentation off
+	 */
+	public void setDefragThreshold(int maxFreeBlocks) {
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].lock();
+			try {
+				stripes[i].setDefragThreshold(maxFreeBlocks);
+			} finally {
+				locks[i].unlock();
+			}
+		}
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), from the home stripe
+	 * of the calling thread if possible, and otherwise from the nearest stripe that
+	 * can satisfy the request.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		int n = stripes.length;
+		int home = Math.floorMod(threadNumber.get(), n);
+
+		// Try the home stripe, then its neighbours at growing distances, on both sides
+		for (int distance = 0; distance <= n / 2; distance++) {
+			int address = mallocFrom((home + distance) % n, length);
+			if (address != -1) {
+				return address;
+			}
+			int other = (home - distance + n) % n;
+			if (other != (home + distance) % n) {
+				address = mallocFrom(other, length);
+				if (address != -1) {
+					return address;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, in the stripe
+	 * that owns the address. Addresses that are not allocated are ignored, also when
+	 * no block is allocated in the stripe.
+	 *
+	 * @param address
+	 *        the base address of the block to free
+	 */
+	public void free(int address) {
+		if (address < 0 || address >= maxSize) {
+			return;
+		}
+		int stripe = Math.min(address / stripeSize, stripes.length - 1);
+		ReentrantLock lock = locks[stripe];
+		lock.lock();
+		try {
+			// A memory space with no allocated blocks throws on free, so skip an empty stripe
+			if (stripes[stripe].getAllocatedCount() == 0) {
+				return;
+			}
+			stripes[stripe].free(address - stripe * stripeSize);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Performs defragmentation of every stripe, one stripe at a time.
+	 */
+	public void defrag() {
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].lock();
+			try {
+				stripes[i].defrag();
+			} finally {
+				locks[i].unlock();
+			}
+		}
+	}
+
+	/**
+	 * A textual representation of the free blocks and the allocated blocks of all the
+	 * stripes, stripe after stripe, with addresses in the whole memory space.
+	 */
+	public String toString() {
+		StringBuilder free = new StringBuilder();
+		StringBuilder allocated = new StringBuilder();
+		for (int i = 0; i < stripes.length; i++) {
+			locks[i].lock();
+			try {
+				appendBlocks(free, stripes[i].freeBlocks(), i * stripeSize);
+				appendBlocks(allocated, stripes[i].allocatedBlocks(), i * stripeSize);
+			} finally {
+				locks[i].unlock();
+			}
+		}
+		return free + "\n" + allocated;
+	}
+
+	// Allocates from the given stripe, and returns the address in the whole memory space, or -1
+	private int mallocFrom(int stripe, int length) {
+		MemorySpace space = stripes[stripe];
+		if (length > space.getMaxSize()) {
+			return -1;
+		}
+		ReentrantLock lock = locks[stripe];
+		lock.lock();
+		try {
+			int address = space.malloc(length);
+			return (address == -1) ? -1 : address + stripe * stripeSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void appendBlocks(StringBuilder result, LinkedList blocks, int offset) {
+		ListIterator iterator = blocks.iterator();
+		while (iterator.hasNext()) {
+			MemoryBlock block = iterator.next();
+			result.append(new MemoryBlock(block.getBaseAddress() + offset, block.getLength())).append(' ');
+		}
+	}
+}
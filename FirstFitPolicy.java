@@ -0,0 +1,15 @@
+/**
+ * The first-fit placement policy: malloc takes the first free block in the free list
+ * which is large enough. This is the default policy of a memory space.
+ * The first such block is found in the policy's segment tree, not by scanning the list.
+ */
+public class FirstFitPolicy extends OrderIndexedPolicy {
+
+	public Node select(LinkedList freeList, int length) {
+		return first(0, length);
+	}
+
+	public Node selectAligned(LinkedList freeList, int length, int alignment) {
+		return firstAligned(0, length, alignment);
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * A hash table that maps int keys to values, without boxing the keys.
+ * <p>
+ * The table uses open addressing with linear probing: the keys and the values are
+ * stored in two parallel arrays, and a key that collides is placed in the next free
+ * slot. Removal shifts the following entries back, so lookups never have to skip
+ * deleted slots. Null values are not allowed, since a null value marks an empty slot.
+ *
+ * @param <V> the type of the values
+ */
+public class IntHashMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	// The largest power of two that an array can hold as a capacity
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private int[] keys;      // the keys, in the slots whose values are not null
+	private Object[] values; // the values, or null for empty slots
+	private int mask;        // capacity - 1, where the capacity is a power of two
+	private int size;        // number of entries in this table
+
+	/**
+	 * Constructs a new, empty table.
+	 */
+	public IntHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * Constructs a new, empty table that can hold the given number of entries
+	 * without resizing.
+	 *
+	 * @param expectedSize
+	 *        the number of entries that the table is expected to hold
+	 * @throws IllegalArgumentException
+	 *        if the expected size is negative, or more than half of the largest capacity
+	 */
+	public IntHashMap(int expectedSize) {
+		if (expectedSize < 0 || expectedSize > MAX_CAPACITY / 2) {
+			throw new IllegalArgumentException("expected size must be between 0 and " + MAX_CAPACITY / 2);
+		}
+		int capacity = MIN_CAPACITY;
+		// Computed in long, since twice the expected size may not fit in an int
+		while (capacity < 2L * expectedSize) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * Gets the number of entries in this table
+	 * @return the number of entries.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks if this table has no entries
+	 * @return true if the table is empty, false otherwise.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Gets the value that the given key is mapped to.
+	 *
+	 * @param key
+	 *        the given key
+	 * @return the value of the key, or null if the key is not in this table
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int slot = find(key);
+		return (slot < 0) ? null : (V) values[slot];
+	}
+
+	/**
+	 * Checks if the given key is in this table.
+	 *
+	 * @param key
+	 *        the given key
+	 * @return true if the key is in the table, false otherwise
+	 */
+	public boolean containsKey(int key) {
+		return find(key) >= 0;
+	}
+
+	/**
+	 * Maps the given key to the given value, replacing the key's previous value.
+	 *
+	 * @param key
+	 *        the given key
+	 * @param value
+	 *        the value of the key
+	 * @return the previous value of the key, or null if the key was not in this table
+	 * @throws NullPointerException
+	 *         if the value is null
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("value cannot be null");
+		}
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				V previous = (V) values[slot];
+				values[slot] = value;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+		if (size * 2 > values.length) {
+			resize(values.length * 2);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the given key from this table.
+	 *
+	 * @param key
+	 *        the key to remove
+	 * @return the value of the removed key, or null if the key was not in this table
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int slot = find(key);
+		if (slot < 0) {
+			return null;
+		}
+		V removed = (V) values[slot];
+
+		// Shift back the entries that follow the removed slot in its probe sequence
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (values[next] != null) {
+			int home = hash(keys[next]) & mask;
+			// The entry may fill the hole only if its home slot is not between the hole and it
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[hole] = null;
+		size--;
+		return removed;
+	}
+
+	/**
+	 * Returns the keys of this table, in no particular order.
+	 * @return a new array that holds the keys.
+	 */
+	public int[] keys() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != null) {
+				result[n++] = keys[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Removes all the entries of this table.
+	 */
+	public void clear() {
+		java.util.Arrays.fill(values, null);
+		size = 0;
+	}
+
+	// Returns the slot of the given key, or -1 if the key is not in this table
+	private int find(int key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != null) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = hash(oldKeys[i]) & mask;
+				while (values[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	// Spreads the bits of the key, since addresses are often multiples of a common stride
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
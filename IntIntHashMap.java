@@ -0,0 +1,163 @@
+/**
+ * A hash table that maps int keys to non-negative int values, without boxing.
+ * <p>
+ * Like IntHashMap, the table uses open addressing with linear probing and backward-shift
+ * removal. Since the values are never negative, the value -1 marks an empty slot, and
+ * is returned by get and remove for keys that are not in the table.
+ */
+public class IntIntHashMap {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private int[] keys;   // the keys, in the slots whose values are not -1
+	private int[] values; // the values, or -1 for empty slots
+	private int mask;     // capacity - 1, where the capacity is a power of two
+	private int size;     // number of entries in this table
+
+	/**
+	 * Constructs a new, empty table.
+	 */
+	public IntIntHashMap() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Gets the number of entries in this table
+	 * @return the number of entries.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks if this table has no entries
+	 * @return true if the table is empty, false otherwise.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Gets the value that the given key is mapped to.
+	 *
+	 * @param key
+	 *        the given key
+	 * @return the value of the key, or -1 if the key is not in this table
+	 */
+	public int get(int key) {
+		int slot = find(key);
+		return (slot < 0) ? -1 : values[slot];
+	}
+
+	/**
+	 * Maps the given key to the given value, replacing the key's previous value.
+	 *
+	 * @param key
+	 *        the given key
+	 * @param value
+	 *        the value of the key, which must not be negative
+	 * @return the previous value of the key, or -1 if the key was not in this table
+	 */
+	public int put(int key, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("value must not be negative");
+		}
+		int slot = hash(key) & mask;
+		while (values[slot] != -1) {
+			if (keys[slot] == key) {
+				int previous = values[slot];
+				values[slot] = value;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+		if (size * 2 > values.length) {
+			resize(values.length * 2);
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes the given key from this table.
+	 *
+	 * @param key
+	 *        the key to remove
+	 * @return the value of the removed key, or -1 if the key was not in this table
+	 */
+	public int remove(int key) {
+		int slot = find(key);
+		if (slot < 0) {
+			return -1;
+		}
+		int removed = values[slot];
+
+		// Shift back the entries that follow the removed slot in its probe sequence
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (values[next] != -1) {
+			int home = hash(keys[next]) & mask;
+			// The entry may fill the hole only if its home slot is not between the hole and it
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[hole] = -1;
+		size--;
+		return removed;
+	}
+
+	/**
+	 * Removes all the entries of this table.
+	 */
+	public void clear() {
+		java.util.Arrays.fill(values, -1);
+		size = 0;
+	}
+
+	// Returns the slot of the given key, or -1 if the key is not in this table
+	private int find(int key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != -1) {
+			if (keys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != -1) {
+				int slot = hash(oldKeys[i]) & mask;
+				while (values[slot] != -1) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new int[capacity];
+		java.util.Arrays.fill(values, -1);
+		mask = capacity - 1;
+	}
+
+	// Spreads the bits of the key, since addresses are often multiples of a common stride
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -1,11 +1,15 @@
+import java.util.Comparator;
+
 /**
- * Represents a list of Nodes. 
+ * Represents a doubly-linked list of Nodes. 
  */
 public class LinkedList {
 	
 	private Node first; // pointer to the first element of this list
 	private Node last;  // pointer to the last element of this list
 	private int size;   // number of elements in this list
+	int modCount;       // number of structural changes, checked by iterators
+	private NodePool pool; // the pool that recycles the nodes of this list, or null
 	
 	/**
 	 * Constructs a new list.
@@ -15,6 +19,19 @@ public class LinkedList {
 		last = first;
 		size = 0;
 	}
+
+	/**
+	 * Constructs a new list which takes its nodes from the given pool, and returns
+	 * its removed nodes to it. The nodes removed from such a list must not be used
+	 * after their removal.
+	 * 
+	 * @param pool
+	 *        the pool of recycled nodes
+	 */
+	public LinkedList (NodePool pool) {
+		this();
+		this.pool = pool;
+	}
 	
 	/**
 	 * Gets the first node of the list
@@ -41,7 +58,8 @@ public class LinkedList {
 	}
 	
 	/**
-	 * Gets the node located at the given index in this list. 
+	 * Gets the node located at the given index in this list. The list is walked
+	 * from its first node or from its last node, whichever is closer to the index.
 	 * 
 	 * @param index
 	 *        the index of the node to retrieve, between 0 and size
@@ -54,9 +72,17 @@ public class LinkedList {
 			throw new IllegalArgumentException(
 					"index must be between 0 and size");
 		}
-		Node current = first; // Start from the first node
-		for(int i = 0; i < index; i++){
-			current = current.next; // Move to the next node
+		// Walk from whichever end of the list is closer to the index
+		if (index < size / 2) {
+			Node current = first; // Start from the first node
+			for(int i = 0; i < index; i++){
+				current = current.next; // Move to the next node
+			}
+			return current; // Return the node at the specified index
+		}
+		Node current = last; // Start from the last node
+		for(int i = size - 1; i > index; i--){
+			current = current.prev; // Move to the previous node
 		}
 		return current; // Return the node at the specified index
 	}
@@ -89,11 +115,15 @@ public class LinkedList {
             throw new IllegalArgumentException("index must be between 0 and size");
         }
 
-		Node newNode = new Node(block);
+		Node newNode = (pool != null) ? pool.obtain(block) : new Node(block);
+		newNode.owner = this;
 		
 		if (index == 0) {
 			// Add to the beginning
 			newNode.next = first;
+			if (first != null) {
+				first.prev = newNode;
+			}
 			first = newNode;
 			if (size == 0) {
 				last = newNode; // Update last if the list was empty
@@ -107,6 +137,7 @@ public class LinkedList {
 				first = last = newNode; // Special case for an empty list
 			}
 			else{
+				newNode.prev = last;
 				last.next = newNode;
 				last = newNode;
 			}
@@ -114,11 +145,38 @@ public class LinkedList {
 		else{
 			// Add to the middle
 			Node prev = getNode(index - 1);
+			newNode.prev = prev;
 			newNode.next = prev.next;
+			prev.next.prev = newNode;
 			prev.next = newNode;
 		}
 
 		size++;
+		modCount++;
+	}
+
+	/**
+	 * Creates a new node that points to the given memory block, and inserts it just
+	 * before the given node of this list, in O(1).
+	 * 
+	 * @param node
+	 *        a node of this list
+	 * @param block
+	 *        the memory block to be inserted into the list
+	 */
+	void addBefore(Node node, MemoryBlock block) {
+		Node newNode = (pool != null) ? pool.obtain(block) : new Node(block);
+		newNode.owner = this;
+		newNode.next = node;
+		newNode.prev = node.prev;
+		if (node.prev == null) {
+			first = newNode;
+		} else {
+			node.prev.next = newNode;
+		}
+		node.prev = newNode;
+		size++;
+		modCount++;
 	}
 
 	/**
@@ -181,45 +239,43 @@ public class LinkedList {
 	}
 
 	/**
-	 * Removes the given node from this list.	
+	 * Removes the given node from this list. Since every node links to its previous 
+	 * node, the removal time is O(1).
+	 * <p>
+	 * The removed node keeps its links, so an iteration that has reached it can go on,
+	 * unless this list recycles its nodes through a pool.
 	 * 
 	 * @param node
 	 *        the node that will be removed from this list
+	 * @throws IllegalArgumentException
+	 *         if the node is not in this list
 	 */
 	public void remove(Node node) {
 		if (node == null || first == null) {
 			throw new NullPointerException();
 		}
 
-		// Special case: Removing the first node
-		if (node == first) {
-			first = first.next;
-			if (first == null) {
-				last = null; // The list is now empty
-			}
-			size--;
-			return;
+		if (node.owner != this) {
+			throw new IllegalArgumentException("Node not found in the list");
 		}
 
-		// Traverse the list to find the node before the one to remove
-		Node currentNode = first;
-		while (currentNode.next != null) {
-			if (currentNode.next == node) {
-				// Found the node before the target
-				currentNode.next = currentNode.next.next;
-				
-				// If the removed node was the last one, update the last pointer
-				if (currentNode.next == null) {
-					last = currentNode;
-				}
-				size--;
-				return;
-			}
-			currentNode = currentNode.next;
+		// Unlink the node from its neighbours, updating first and last at the ends
+		if (node.prev == null) {
+			first = node.next;
+		} else {
+			node.prev.next = node.next;
+		}
+		if (node.next == null) {
+			last = node.prev;
+		} else {
+			node.next.prev = node.prev;
+		}
+		node.owner = null;
+		size--;
+		modCount++;
+		if (pool != null) {
+			pool.release(node);
 		}
-		
-		// If we exit the loop, the node was not found
-		throw new IllegalArgumentException("Node not found in the list");
 	}
 
 	/**
@@ -270,28 +326,80 @@ public class LinkedList {
 		return new ListIterator(first, this);
 	}
 
+	/**
+	 * Sorts this list by the base addresses of its memory blocks, in increasing order.
+	 */
 	public void sortByBaseAddress(){
+		sort(MemoryBlock.BY_BASE_ADDRESS);
+	}
+
+	/**
+	 * Sorts this list by the given order of its memory blocks. The sort is stable:
+	 * blocks which are equal in the given order keep their relative order.
+	 * <p>
+	 * The implementation is a bottom-up merge sort, which takes O(n log n) time. 
+	 * It relinks the existing nodes, so it allocates no memory.
+	 * 
+	 * @param comparator
+	 *        the order of the memory blocks, for example MemoryBlock.BY_LENGTH
+	 */
+	public void sort(Comparator<MemoryBlock> comparator) {
+		if (comparator == null) {
+			throw new NullPointerException("Comparator cannot be null");
+		}
 		if (size <= 1) {
-			return;			
+			return;
 		}
 
-		boolean swapped;
-		do{
-			swapped = false;
-			Node currentNode = first;
-			while (currentNode != null && currentNode.next != null) {
-				if (currentNode.block.getBaseAddress() > currentNode.next.block.baseAddress) {
-					MemoryBlock tempBlock = currentNode.block;
-					currentNode.block = currentNode.next.block;
-					currentNode.next.block = tempBlock;
-
-					swapped = true;					
+		Node head = first;
+		Node tail = null;
+		// Merge neighbouring sorted runs of the given width, doubling the width on each pass
+		for (int width = 1; width < size; width *= 2) {
+			Node left = head;
+			head = null;
+			tail = null;
+			while (left != null) {
+				// Find the start of the right run, just after the left run
+				Node right = left;
+				int leftSize = 0;
+				while (leftSize < width && right != null) {
+					right = right.next;
+					leftSize++;
 				}
+				int rightSize = width;
 
-				currentNode = currentNode.next;
+				// Merge the two runs, taking from the left run on ties (for stability)
+				while (leftSize > 0 || (rightSize > 0 && right != null)) {
+					Node next;
+					if (leftSize == 0) {
+						next = right;
+						right = right.next;
+						rightSize--;
+					} else if (rightSize == 0 || right == null
+							|| comparator.compare(left.block, right.block) <= 0) {
+						next = left;
+						left = left.next;
+						leftSize--;
+					} else {
+						next = right;
+						right = right.next;
+						rightSize--;
+					}
+					if (tail == null) {
+						head = next;
+					} else {
+						tail.next = next;
+					}
+					next.prev = tail;
+					tail = next;
+				}
+				left = right;
 			}
+			tail.next = null;
 		}
-		while(swapped); // Continue sorting if a swap happened
+		first = head;
+		last = tail;
+		modCount++;
 	}
 	
 	/**
@@ -1,11 +1,29 @@
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
 public class ListIterator {
 
     // current position in the list (cursor)
     public Node current;
+
+    // the list that this iterator iterates over
+    private LinkedList list;
+
+    // the node returned by the last call to next, or null if it was removed,
+    // or if an element was added since
+    private Node lastReturned;
+
+    // the list's modification count that this iterator expects, for detecting
+    // changes made to the list other than through this iterator
+    private int expectedModCount;
     
     /** Constructs a list iterator, starting at the given node */
     public ListIterator(Node node, LinkedList list) {
         current = node;
+        this.list = list;
+        if (list != null) {
+            expectedModCount = list.modCount;
+        }
     }
 
     /** Checks if this iterator has more nodes to process */
@@ -13,10 +31,76 @@ public class ListIterator {
         return (current != null);
     }
 
-    /** Returns the current element in the list, and advances the cursor */
+    /** 
+     * Returns the current element in the list, and advances the cursor 
+     * @throws NoSuchElementException if there are no more elements
+     * @throws ConcurrentModificationException if the list was changed other than through this iterator
+     */
     public MemoryBlock next() {
+        checkForModification();
+        if (current == null) {
+            throw new NoSuchElementException();
+        }
         Node currentNode = current;
         current = current.next;
+        lastReturned = currentNode;
         return currentNode.block;
     }
+
+    /**
+     * Removes from the list the element that was returned by the last call to next, in O(1).
+     * @throws IllegalStateException if next was not called, or remove or add were called after it
+     * @throws ConcurrentModificationException if the list was changed other than through this iterator
+     */
+    public void remove() {
+        checkForModification();
+        if (lastReturned == null) {
+            throw new IllegalStateException("next must be called before remove");
+        }
+        list.remove(lastReturned);
+        lastReturned = null;
+        expectedModCount = list.modCount;
+    }
+
+    /**
+     * Replaces the element that was returned by the last call to next with the given block.
+     * @throws IllegalStateException if next was not called, or remove or add were called after it
+     * @throws ConcurrentModificationException if the list was changed other than through this iterator
+     */
+    public void set(MemoryBlock block) {
+        checkForModification();
+        if (block == null) {
+            throw new NullPointerException("MemoryBlock cannot be null");
+        }
+        if (lastReturned == null) {
+            throw new IllegalStateException("next must be called before set");
+        }
+        lastReturned.block = block;
+    }
+
+    /**
+     * Inserts the given block into the list at the cursor, in O(1): the block is placed
+     * before the element that the next call to next would return (or at the end of the
+     * list, if there is no such element), so next does not return it.
+     * @throws ConcurrentModificationException if the list was changed other than through this iterator
+     */
+    public void add(MemoryBlock block) {
+        checkForModification();
+        if (block == null) {
+            throw new NullPointerException("MemoryBlock cannot be null");
+        }
+        if (current == null) {
+            list.addLast(block);
+        } else {
+            list.addBefore(current, block);
+        }
+        lastReturned = null;
+        expectedModCount = list.modCount;
+    }
+
+    private void checkForModification() {
+        if (list != null && list.modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+    }
 }
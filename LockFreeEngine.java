@@ -0,0 +1,320 @@
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicMarkableReference;
+
+/**
+ * A thread-safe allocation engine whose free list is a lock-free linked list, so that
+ * no thread ever waits for a lock held by another thread.
+ * <p>
+ * Every node of the free list holds its block as one atomic value (base address in the
+ * high 32 bits, length in the low 32 bits). malloc takes words from the front of a block
+ * with a single compareAndSet of that value, and claims a block that fits exactly by
+ * setting its length to 0. A claimed node is then removed in the style of Harris: its
+ * next link is first marked, so no node can be linked after it, and then it is unlinked
+ * by whichever thread reaches it next. free pushes a new node at the front of the list,
+ * and the allocated blocks are kept in a ConcurrentHashMap. malloc takes effect at the
+ * compareAndSet that claims its words. free takes effect at the compareAndSet of the
+ * head's next link that pushes the block's node, since only then can a malloc take the
+ * words; removing the block from the allocated map before it only decides which of two
+ * concurrent frees of the same address pushes the block, so that the other is ignored.
+ * <p>
+ * Removed nodes are never recycled: they are left to the garbage collector, which does
+ * not reclaim a node while another thread may still be traversing it. This is what makes
+ * the unlinking safe without hazard pointers or epochs. A block's value can never return
+ * to an earlier value (base addresses only grow, and a block's length only grows while
+ * its base address stays), so the compareAndSets are not exposed to the ABA problem.
+ * <p>
+ * Like the memory space's own free list, free does not coalesce; defrag merges adjacent
+ * free blocks. defrag may run concurrently with malloc and free. While defrag moves a
+ * block into its neighbour, or pushes it back, a malloc may pass over those words; so
+ * defrag counts the defrags that started and finished, and a malloc that finds no block
+ * traverses the list again if a defrag was running at any time during its traversal.
+ * A malloc that returns -1 therefore takes effect at a point where no defrag runs, and
+ * the list then holds every free word. A MemorySpace that delegates to this engine may also be shared by threads, although
+ * its counters of retried mallocs are then approximate.
+ */
+public class LockFreeEngine implements MemoryEngine {
+
+	// A node of the free list
+	private static final class FreeNode {
+		// (base address << 32) | length, where length 0 means that the node is claimed
+		final AtomicLong block;
+		// The next node, marked once this node is logically removed from the list
+		final AtomicMarkableReference<FreeNode> next;
+
+		FreeNode(long block, FreeNode next) {
+			this.block = new AtomicLong(block);
+			this.next = new AtomicMarkableReference<FreeNode>(next, false);
+		}
+	}
+
+	// A sentinel node before the first free block. Its length is 0, and it is never removed.
+	private final FreeNode head = new FreeNode(0, null);
+
+	// The lengths of the presently allocated blocks, by their base addresses
+	private final ConcurrentHashMap<Integer, Integer> allocated = new ConcurrentHashMap<Integer, Integer>();
+
+	// Total size of the memory space
+	private final int maxSize;
+
+	// The number of defrags that started, and of those that finished
+	private final AtomicInteger defragsStarted = new AtomicInteger();
+	private final AtomicInteger defragsFinished = new AtomicInteger();
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 */
+	public LockFreeEngine(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("Memory size must not be negative");
+		}
+		this.maxSize = maxSize;
+		if (maxSize > 0) {
+			push(pack(0, maxSize));
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Allocates from the first free block whose length is at least the given length.
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		boolean[] marked = new boolean[1];
+		retry:
+		while (true) {
+			int finished = defragsFinished.get();
+			FreeNode pred = head;
+			FreeNode curr = pred.next.getReference();
+			while (curr != null) {
+				FreeNode succ = curr.next.get(marked);
+				if (marked[0]) {
+					// Help unlink the removed node, or start over if pred was removed meanwhile
+					if (!pred.next.compareAndSet(curr, succ, false, false)) {
+						continue retry;
+					}
+					curr = succ;
+					continue;
+				}
+				long block = curr.block.get();
+				int freeLength = length(block);
+				if (freeLength == 0) {
+					// A claimed node: mark it, then read it again
+					curr.next.attemptMark(succ, true);
+					continue;
+				}
+				if (freeLength >= length) {
+					int baseAddress = baseAddress(block);
+					long rest = pack(freeLength > length ? baseAddress + length : baseAddress, freeLength - length);
+					if (!curr.block.compareAndSet(block, rest)) {
+						continue; // the block was changed by another thread, so read it again
+					}
+					allocated.put(baseAddress, length);
+					if (freeLength == length && curr.next.attemptMark(succ, true)) {
+						pred.next.compareAndSet(curr, succ, false, false);
+					}
+					return baseAddress;
+				}
+				pred = curr;
+				curr = succ;
+			}
+			// Unless all the defrags that started have finished, and none has started since
+			// the traversal began, the traversal may have passed over words that a defrag moved
+			if (defragsStarted.get() != finished) {
+				Thread.onSpinWait();
+				continue;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Pushes the block whose base address equals the given address to the front of the
+	 * free list. Addresses that are not allocated are ignored.
+	 */
+	public void free(int address) {
+		if (allocated.isEmpty()) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		Integer length = allocated.remove(address);
+		if (length == null) {
+			return;
+		}
+		push(pack(address, length));
+	}
+
+	/**
+	 * Shrinks the allocated block in place, and pushes its tail to the front of the free
+	 * list. The shrink takes effect at the replacement of the block's length in the
+	 * allocated map, which a concurrent free of the same address either precedes or follows.
+	 */
+	public boolean shrink(int address, int newLength) {
+		Integer length = allocated.get(address);
+		if (length == null || !allocated.replace(address, length, newLength)) {
+			return false;
+		}
+		push(pack(address + newLength, length - newLength));
+		return true;
+	}
+
+	public int allocatedLength(int address) {
+		Integer length = allocated.get(address);
+		return (length == null) ? -1 : length;
+	}
+
+	/**
+	 * Merges adjacent free blocks. Every merge claims the second block (by setting its
+	 * length to 0) and then extends the first block over it; if the first block was
+	 * changed by a concurrent malloc in between, the second block is pushed back instead.
+	 */
+	public void defrag() {
+		defragsStarted.incrementAndGet();
+		try {
+			merge();
+		} finally {
+			defragsFinished.incrementAndGet();
+		}
+	}
+
+	// Merges adjacent free blocks, and unlinks the claimed nodes
+	private void merge() {
+		ArrayList<FreeNode> nodes = liveNodes();
+		long[] order = new long[nodes.size()];
+		for (int i = 0; i < order.length; i++) {
+			// Sort the nodes by base address: the high bits hold the address, the low bits the index
+			order[i] = ((long) baseAddress(nodes.get(i).block.get()) << 32) | i;
+		}
+		java.util.Arrays.sort(order);
+
+		FreeNode target = null;
+		for (int i = 0; i < order.length; i++) {
+			FreeNode node = nodes.get((int) order[i]);
+			long block = node.block.get();
+			if (length(block) == 0) {
+				continue;
+			}
+			long targetBlock = (target == null) ? 0 : target.block.get();
+			if (length(targetBlock) == 0
+					|| baseAddress(targetBlock) + length(targetBlock) != baseAddress(block)
+					|| !node.block.compareAndSet(block, pack(baseAddress(block), 0))) {
+				target = node;
+				continue;
+			}
+			markRemoved(node);
+			long merged = pack(baseAddress(targetBlock), length(targetBlock) + length(block));
+			if (!target.block.compareAndSet(targetBlock, merged)) {
+				push(block);
+			}
+		}
+		unlinkRemoved();
+	}
+
+	/**
+	 * Returns the free blocks, in free list order.
+	 */
+	public LinkedList freeBlocks() {
+		LinkedList list = new LinkedList();
+		for (FreeNode node : liveNodes()) {
+			long block = node.block.get();
+			if (length(block) > 0) {
+				list.addLast(new MemoryBlock(baseAddress(block), length(block)));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the allocated blocks, in increasing order of their base addresses.
+	 */
+	public LinkedList allocatedBlocks() {
+		LinkedList list = new LinkedList();
+		for (Map.Entry<Integer, Integer> entry : allocated.entrySet()) {
+			list.addLast(new MemoryBlock(entry.getKey(), entry.getValue()));
+		}
+		list.sortByBaseAddress();
+		return list;
+	}
+
+	// Adds a node with the given block to the front of the free list
+	private void push(long block) {
+		FreeNode node = new FreeNode(block, null);
+		while (true) {
+			FreeNode first = head.next.getReference();
+			node.next.set(first, false);
+			if (head.next.compareAndSet(first, node, false, false)) {
+				return;
+			}
+		}
+	}
+
+	// Marks the next link of the given node, so that the node is logically removed
+	private static void markRemoved(FreeNode node) {
+		boolean[] marked = new boolean[1];
+		while (true) {
+			FreeNode succ = node.next.get(marked);
+			if (marked[0] || node.next.attemptMark(succ, true)) {
+				return;
+			}
+		}
+	}
+
+	// Returns the nodes of the free list that are not marked as removed, in list order
+	private ArrayList<FreeNode> liveNodes() {
+		ArrayList<FreeNode> nodes = new ArrayList<FreeNode>();
+		boolean[] marked = new boolean[1];
+		FreeNode curr = head.next.getReference();
+		while (curr != null) {
+			FreeNode succ = curr.next.get(marked);
+			if (!marked[0]) {
+				nodes.add(curr);
+			}
+			curr = succ;
+		}
+		return nodes;
+	}
+
+	// Unlinks the marked nodes of the free list
+	private void unlinkRemoved() {
+		boolean[] marked = new boolean[1];
+		retry:
+		while (true) {
+			FreeNode pred = head;
+			FreeNode curr = pred.next.getReference();
+			while (curr != null) {
+				FreeNode succ = curr.next.get(marked);
+				if (marked[0]) {
+					if (!pred.next.compareAndSet(curr, succ, false, false)) {
+						continue retry;
+					}
+				} else {
+					pred = curr;
+				}
+				curr = succ;
+			}
+			return;
+		}
+	}
+
+	private static long pack(int baseAddress, int length) {
+		return ((long) baseAddress << 32) | (length & 0xFFFFFFFFL);
+	}
+
+	private static int baseAddress(long block) {
+		return (int) (block >>> 32);
+	}
+
+	private static int length(long block) {
+		return (int) block;
+	}
+}
@@ -1,9 +1,17 @@
+import java.util.Comparator;
+
 /**
  * Represents a block of memory.
  * Each memory block has a base address, and a length in words. 
  */
 public class MemoryBlock {
 
+	// Orders memory blocks by their base addresses
+	public static final Comparator<MemoryBlock> BY_BASE_ADDRESS = Comparator.comparingInt(MemoryBlock::getBaseAddress);
+
+	// Orders memory blocks by their lengths
+	public static final Comparator<MemoryBlock> BY_LENGTH = Comparator.comparingInt(MemoryBlock::getLength);
+
 	int baseAddress;  // the address where this memory block begins
 	int length;       // the length of this memory block, in words
 
@@ -0,0 +1,76 @@
+/**
+ * Represents an allocation engine that a MemorySpace can delegate to, instead of
+ * managing the memory with its own free list and allocated list.
+ * Engines follow the same contract as MemorySpace: malloc returns the base address
+ * of the allocated block, or -1 if unable to allocate, and free ignores addresses
+ * that are not allocated.
+ */
+public interface MemoryEngine {
+
+	/**
+	 * Gets the size of the memory space managed by this engine
+	 * @return the size of the memory space, in words
+	 */
+	int getMaxSize();
+
+	/**
+	 * Allocates a memory block of a requested length (in words).
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	int malloc(int length);
+
+	/**
+	 * Frees the memory block whose base address equals the given address.
+	 * 
+	 * @param address
+	 *        the base address of the block to free
+	 * @throws IllegalArgumentException
+	 *         if no block is presently allocated
+	 */
+	void free(int address);
+
+	/**
+	 * Gets the length of the allocated block whose base address equals the given address,
+	 * found through the engine's own index of its allocated blocks.
+	 * 
+	 * @param address
+	 *        the base address of the block
+	 * @return the length of the block (in words), or -1 if no block is allocated at the address
+	 */
+	int allocatedLength(int address);
+
+	/**
+	 * Shrinks the allocated block whose base address equals the given address, in place,
+	 * and frees the words after its new end. An engine that cannot free part of a block
+	 * leaves the block as it is, and returns false; the block then keeps all its words.
+	 * 
+	 * @param address
+	 *        the base address of an allocated block
+	 * @param newLength
+	 *        the new length of the block, which is positive and shorter than its length
+	 * @return true if the block was shrunk, false if it was left as it is
+	 */
+	default boolean shrink(int address, int newLength) {
+		return false;
+	}
+
+	/**
+	 * Performs defragmentation of the free memory managed by this engine.
+	 */
+	void defrag();
+
+	/**
+	 * Returns a list of the presently free blocks, for reporting and debugging.
+	 * The blocks in the list are copies, so changing them does not affect the engine.
+	 */
+	LinkedList freeBlocks();
+
+	/**
+	 * Returns a list of the presently allocated blocks, for reporting and debugging.
+	 * The blocks in the list are copies, so changing them does not affect the engine.
+	 */
+	LinkedList allocatedBlocks();
+}
@@ -1,19 +1,72 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
 	/**
 	 * Represents a managed memory space. The memory space manages a list of allocated 
 	 * memory blocks, and a list free memory blocks. The methods "malloc" and "free" are 
 	 * used, respectively, for creating new blocks and recycling existing blocks.
+	 * Alternatively, the memory space can delegate the management of its blocks to a 
+	 * MemoryEngine, given at construction.
 	 */
 	public class MemorySpace {
 
 		// A list of the memory blocks that are presently allocated
 		private LinkedList allocatedList;
 
+		// The nodes of the allocatedList, by the base addresses of their blocks
+		private IntHashMap<Node> allocatedIndex;
+
 		// A list of memory blocks that are presently free
 		private LinkedList freeList;
 
+		// The nodes of the freeList, by the base addresses of their blocks
+		private IntHashMap<Node> freeIndex;
+
+		// The maximal number of recycled nodes and blocks kept by a memory space
+		private static final int POOL_SIZE = 1024;
+
+		// Recycled memory blocks, reused by malloc when it splits a free block
+		private MemoryBlock[] blockPool;
+		private int blockPoolSize;
+
+		// The policy that selects the free block from which malloc allocates
+		private PlacementPolicy policy;
+
 		// Total size of the memory space
 		private int maxSize;
 
+		// Number of presently free words (maintained only when there is no engine)
+		private int freeWords;
+
+		// Number of free blocks above which free runs a defrag (0 if proactive defrag is off),
+		// and the free list size at which the next proactive defrag runs
+		private int defragThreshold;
+		private int nextProactiveDefrag;
+
+		// Counters of the defrags run by malloc after a failure, of the retries that
+		// then succeeded, and of the proactive defrags run by free
+		private long retryDefragCount;
+		private long retrySuccessCount;
+		private long proactiveDefragCount;
+
+		// The engine that manages this memory space, or null if the memory space
+		// is managed by the free list and the allocated list above
+		private MemoryEngine engine;
+
+		// The number of bytes in a word of the backing store
+		public static final int WORD_BYTES = Integer.BYTES;
+
+		// The off-heap memory that holds the words of this memory space, or null if the
+		// memory space only keeps track of its blocks
+		private ByteBuffer backingStore;
+
+		// The journal to which the operations of this memory space are appended, or null
+		private OperationJournal journal;
+
 		/**
 		 * Constructs a new managed memory space of a given maximal size.
 		 * 
@@ -21,22 +74,81 @@
 		 *            the size of the memory space to be managed
 		 */
 		public MemorySpace(int maxSize) {
+			this(maxSize, new FirstFitPolicy());
+		}
+
+		/**
+		 * Constructs a new managed memory space of a given maximal size, which selects
+		 * free blocks for malloc with the given placement policy.
+		 * 
+		 * @param maxSize
+		 *            the size of the memory space to be managed
+		 * @param policy
+		 *            the placement policy, for example a BestFitPolicy
+		 */
+		public MemorySpace(int maxSize, PlacementPolicy policy) {
+			if (policy == null) {
+				throw new NullPointerException("PlacementPolicy cannot be null");
+			}
+			this.policy = policy;
+			// The free list and the allocated list share one pool of recycled nodes,
+			// since free moves blocks from one list to the other
+			NodePool nodePool = new NodePool(POOL_SIZE);
+			blockPool = new MemoryBlock[POOL_SIZE];
 			// initiallizes an empty list of allocated blocks.
-			allocatedList = new LinkedList();
+			allocatedList = new LinkedList(nodePool);
+			allocatedIndex = new IntHashMap<Node>();
 			// Initializes a free list containing a single block which represents
 			// the entire memory. The base address of this single initial block is
 			// zero, and its length is the given memory size.
-			freeList = new LinkedList();
+			freeList = new LinkedList(nodePool);
 			freeList.addLast(new MemoryBlock(0, maxSize));
+			freeIndex = new IntHashMap<Node>();
+			freeIndex.put(0, freeList.getFirst());
+			policy.reset(freeList);
 			this.maxSize = maxSize;
+			this.freeWords = maxSize;
+		}
+
+		/**
+		 * Constructs a new managed memory space whose blocks are managed by the given engine,
+		 * for example a TlsfEngine. The size of the memory space is the engine's size.
+		 * 
+		 * @param engine
+		 *            the engine that allocates and frees the blocks of this memory space
+		 */
+		public MemorySpace(MemoryEngine engine) {
+			if (engine == null) {
+				throw new NullPointerException("MemoryEngine cannot be null");
+			}
+			this.engine = engine;
+			this.maxSize = engine.getMaxSize();
+		}
+
+		/**
+		 * Gets the size of this memory space
+		 * @return the size of the memory space, in words.
+		 */
+		public int getMaxSize() {
+			return maxSize;
+		}
+
+		/**
+		 * Gets the number of presently allocated blocks. A memory space that is managed by
+		 * an engine counts the blocks of the engine's list of allocated blocks.
+		 * @return the number of allocated blocks.
+		 */
+		public int getAllocatedCount() {
+			return (engine != null) ? engine.allocatedBlocks().getSize() : allocatedList.getSize();
 		}
 
 		/**
 		 * Allocates a memory block of a requested length (in words). Returns the
 		 * base address of the allocated block, or -1 if unable to allocate.
 		 * 
-		 * This implementation scans the freeList, looking for the first free memory block 
-		 * whose length equals at least the given length. If such a block is found, the method 
+		 * This implementation asks the placement policy for a free memory block whose length 
+		 * equals at least the given length. With the default (first-fit) policy, this is the 
+		 * first such block in the freeList. If such a block is found, the method 
 		 * performs the following operations:
 		 * 
 		 * (1) A new memory block is constructed. The base address of the new block is set to
@@ -57,6 +169,9 @@
 		 * If the length of the found block is exactly the same as the requested length, 
 		 * then the found block is removed from the freeList and appended to the allocatedList.
 		 * 
+		 * If no suitable block is found, although the free blocks add up to at least the 
+		 * requested length, the method calls defrag and searches again.
+		 * 
 		 * @param length
 		 *        the length (in words) of the memory block that has to be allocated
 		 * @return the base address of the allocated block, or -1 if unable to allocate
@@ -66,38 +181,155 @@
 			throw new IllegalArgumentException("Block size must be positive");
 		}	
 
-		ListIterator freeIterator = freeList.iterator();
-
-		 // Scan the free list for a suitable block
-		while (freeIterator.hasNext()) {
-			MemoryBlock freeBlock = freeIterator.next();
+		int address = allocate(length);
+		// On failure, coalesce the free blocks and try again, unless there is not
+		// enough free memory anyway
+		if (address == -1 && (engine != null || freeWords >= length)) {
+			retryDefragCount++;
+			coalesce();
+			address = allocate(length);
+			if (address != -1) {
+				retrySuccessCount++;
+			}
+		}
+		if (journal != null) {
+			journal.logMalloc(length, address);
+		}
+		return address;
+	}
 
-			if (freeBlock.getLength() > length) {
-				// Split the free block
-				int baseAddress = freeBlock.getBaseAddress();
-				MemoryBlock newBlock = new MemoryBlock(baseAddress, length);
-				
-				// Add the allocated block to the allocated list
-				allocatedList.addLast(newBlock);
+	/**
+	 * Allocates a memory block of a requested length (in words), whose base address is a
+	 * multiple of the given alignment. Returns the base address of the allocated block, or
+	 * -1 if unable to allocate.
+	 * <p>
+	 * The placement policy selects a free block that holds the aligned block. The words of
+	 * the free block before the aligned block stay in the free block, and the words after it
+	 * are added to the free list just after the free block, so no words are lost to the
+	 * alignment. Like malloc, the method calls defrag and searches again on failure.
+	 * A memory space that is managed by an engine supports only the alignment 1.
+	 * 
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @param alignment
+	 *        the alignment of the base address, a power of two
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 * @throws IllegalArgumentException
+	 *         if the length is not positive, or the alignment is not a power of two
+	 */
+	public int mallocAligned(int length, int alignment) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		if (alignment <= 0 || (alignment & (alignment - 1)) != 0) {
+			throw new IllegalArgumentException("Alignment must be a power of two");
+		}
+		if (alignment == 1) {
+			return malloc(length);
+		}
+		if (engine != null) {
+			throw new UnsupportedOperationException("Engines do not support aligned allocation");
+		}
 
-				// Update the free block
-				freeBlock.setBaseAddress(baseAddress + length);
-				freeBlock.setLength(freeBlock.getLength() - length);
-								
-				return newBlock.getBaseAddress();
+		int address = allocateAligned(length, alignment);
+		if (address == -1 && freeWords >= length) {
+			retryDefragCount++;
+			coalesce();
+			address = allocateAligned(length, alignment);
+			if (address != -1) {
+				retrySuccessCount++;
 			}
+		}
+		if (journal != null) {
+			journal.logMallocAligned(length, alignment, address);
+		}
+		return address;
+	}
 
-			else if (freeBlock.getLength() == length) {
-				// Exact match: move the block from free list to allocated list
-				freeList.remove(freeBlock);
-				allocatedList.addLast(freeBlock);
+	// Allocates an aligned block without defragmenting, or returns -1
+	private int allocateAligned(int length, int alignment) {
+		Node freeNode = policy.selectAligned(freeList, length, alignment);
+		if (freeNode == null) {
+			return -1;
+		}
+		MemoryBlock freeBlock = freeNode.block;
+		int baseAddress = freeBlock.getBaseAddress();
+		int alignedAddress = (baseAddress + alignment - 1) & -alignment;
+		if (alignedAddress == baseAddress) {
+			return allocateFrom(freeNode, length);
+		}
 
-				return freeBlock.getBaseAddress();
+		// The free block keeps the leading words, and the trailing words follow it
+		int freeLength = freeBlock.getLength();
+		int trailingLength = baseAddress + freeLength - (alignedAddress + length);
+		freeBlock.setLength(alignedAddress - baseAddress);
+		policy.resized(freeNode, baseAddress, freeLength);
+		if (trailingLength > 0) {
+			MemoryBlock trailingBlock = newBlock(alignedAddress + length, trailingLength);
+			if (freeNode.next == null) {
+				freeList.addLast(trailingBlock);
+			} else {
+				freeList.addBefore(freeNode.next, trailingBlock);
 			}
+			policy.added(freeNode.next);
+			freeIndex.put(alignedAddress + length, freeNode.next);
+		}
+
+		allocatedList.addLast(newBlock(alignedAddress, length));
+		allocatedIndex.put(alignedAddress, allocatedList.getLast());
+		freeWords -= length;
+		return alignedAddress;
+	}
+
+	// Allocates a block of the given length without defragmenting, or returns -1
+	private int allocate(int length) {
+		if (engine != null) {
+			return engine.malloc(length);
+		}
+
+		// Select a suitable free block
+		Node freeNode = policy.select(freeList, length);
+		if (freeNode == null) {
+			// No suitable block found
+			return -1;
+		}
+		return allocateFrom(freeNode, length);
+	}
+
+	// Allocates a block of the given length from the given free block, and returns its address
+	private int allocateFrom(Node freeNode, int length) {
+		MemoryBlock freeBlock = freeNode.block;
+
+		if (freeBlock.getLength() > length) {
+			// Split the free block
+			int baseAddress = freeBlock.getBaseAddress();
+			int freeLength = freeBlock.getLength();
+			MemoryBlock newBlock = newBlock(baseAddress, length);
+
+			// Add the allocated block to the allocated list
+			allocatedList.addLast(newBlock);
+			allocatedIndex.put(baseAddress, allocatedList.getLast());
+
+			// Update the free block
+			freeBlock.setBaseAddress(baseAddress + length);
+			freeBlock.setLength(freeLength - length);
+			policy.resized(freeNode, baseAddress, freeLength);
+			freeIndex.remove(baseAddress);
+			freeIndex.put(baseAddress + length, freeNode);
+			freeWords -= length;
+
+			return newBlock.getBaseAddress();
 		}
 
-		// No suitable block found
-		return -1;
+		// Exact match: move the block from free list to allocated list
+		policy.removed(freeNode);
+		freeList.remove(freeNode);
+		freeIndex.remove(freeBlock.getBaseAddress());
+		allocatedList.addLast(freeBlock);
+		allocatedIndex.put(freeBlock.getBaseAddress(), allocatedList.getLast());
+		freeWords -= length;
+
+		return freeBlock.getBaseAddress();
 	}
 
 
@@ -105,76 +337,757 @@
 		 * Frees the memory block whose base address equals the given address.
 		 * This implementation deletes the block whose base address equals the given 
 		 * address from the allocatedList, and adds it at the end of the free list. 
+		 * The block is found through an index of the allocated blocks by base address,
+		 * so the allocatedList is not scanned. Addresses that are not allocated are ignored.
 		 * 
 		 * @param baseAddress
 		 *            the starting address of the block to freeList
 		 */
 		public void free(int address) {
+			if (engine != null) {
+				engine.free(address);
+				return;
+			}
 			if (allocatedList.getSize() == 0) {
 				throw new IllegalArgumentException("index must be between 0 and size");
 			}
 			
 			
-			ListIterator allocatedIterator = allocatedList.iterator();
+			release(address);
+			defragIfFragmented();
+			if (journal != null) {
+				journal.logFree(address);
+			}
+		}
 
-			// Find the block to free
-			while (allocatedIterator.current != null) {
-				MemoryBlock currentBlock = allocatedIterator.next();
-				if (currentBlock.getBaseAddress() == address) {
-					// Move the block to the free list
-					freeList.addLast(currentBlock);
-					allocatedList.remove(currentBlock);
-					return;
+		/**
+		 * Allocates a batch of memory blocks, whose lengths (in words) are given. For every
+		 * request, the base address of its block, or -1 if it could not be allocated, is
+		 * written at the same index of the addresses array.
+		 * <p>
+		 * The requests are served from the longest to the shortest, so long requests are not
+		 * crowded out by short ones. With the first-fit policy, the whole batch is served in a
+		 * single pass over the free list: every free block serves each pending request that
+		 * still fits in it, and the blocks that are shorter than every pending request are
+		 * skipped through the policy's segment tree. With other policies, or with an engine, the requests are served one
+		 * by one. If some requests fail, the memory space is defragmented once for the whole
+		 * batch, and the failed requests are tried again.
+		 * 
+		 * @param lengths
+		 *            the lengths (in words) of the blocks that have to be allocated
+		 * @param addresses
+		 *            receives the base address of every allocated block, or -1 for every
+		 *            request that could not be allocated
+		 * @return the number of blocks that were allocated
+		 * @throws IllegalArgumentException
+		 *            if a length is not positive, or the addresses array is shorter than
+		 *            the lengths array
+		 */
+		public int mallocBatch(int[] lengths, int[] addresses) {
+			if (addresses.length < lengths.length) {
+				throw new IllegalArgumentException("addresses array is shorter than the lengths array");
+			}
+			int n = lengths.length;
+			// Check every length before the addresses array is written
+			for (int i = 0; i < n; i++) {
+				if (lengths[i] <= 0) {
+					throw new IllegalArgumentException("Block size must be positive");
+				}
+			}
+			// Order the requests from the longest to the shortest, keeping ties in batch order
+			long[] order = new long[n];
+			for (int i = 0; i < n; i++) {
+				order[i] = ((long) (Integer.MAX_VALUE - lengths[i]) << 32) | i;
+				addresses[i] = -1;
+			}
+			java.util.Arrays.sort(order);
+
+			allocateBatch(order, lengths, addresses);
+			// Retry the failed requests after a single defrag, unless none of them can fit
+			int allocated = 0;
+			int shortestFailure = Integer.MAX_VALUE;
+			for (int i = 0; i < n; i++) {
+				if (addresses[i] != -1) {
+					allocated++;
+				} else {
+					shortestFailure = Math.min(shortestFailure, lengths[i]);
+				}
+			}
+			if (allocated < n && (engine != null || freeWords >= shortestFailure)) {
+				retryDefragCount++;
+				coalesce();
+				int before = allocated;
+				allocateBatch(order, lengths, addresses);
+				allocated = 0;
+				for (int i = 0; i < n; i++) {
+					if (addresses[i] != -1) {
+						allocated++;
+					}
 				}
+				retrySuccessCount += allocated - before;
+			}
+			if (journal != null) {
+				journal.logMallocBatch(lengths, addresses);
 			}
+			return allocated;
+		}
+
+		/**
+		 * Frees a batch of memory blocks, whose base addresses are given. Addresses that are
+		 * not allocated are ignored. When proactive defragmentation is turned on, the free
+		 * list is checked against the threshold once, after the whole batch.
+		 * 
+		 * @param addresses
+		 *            the base addresses of the blocks to free
+		 * @throws IllegalArgumentException
+		 *            if the batch is not empty, and no block is presently allocated
+		 */
+		public void freeBatch(int[] addresses) {
+			if (addresses.length == 0) {
+				return;
+			}
+			if (engine != null) {
+				for (int address : addresses) {
+					engine.free(address);
+				}
+				return;
+			}
+			if (allocatedList.getSize() == 0) {
+				throw new IllegalArgumentException("index must be between 0 and size");
+			}
+			for (int address : addresses) {
+				release(address);
+			}
+			defragIfFragmented();
+			if (journal != null) {
+				journal.logFreeBatch(addresses);
+			}
+		}
+
+		/**
+		 * Changes the length of the allocated block whose base address equals the given
+		 * address, and returns the block's base address, which the caller compares with the
+		 * given address to learn whether the block moved.
+		 * <p>
+		 * A block that shrinks stays in place, and its tail is added to the end of the free
+		 * list. A block that grows stays in place if the free blocks that follow it, which
+		 * are found through an index of the free blocks by base address, add up to the words
+		 * it needs, even if defrag has not merged them yet; the block takes those words from
+		 * them, and the rest of the last free block stays free. Otherwise, a block of the new length is allocated by malloc, and the old block is
+		 * freed; the caller then has to copy the contents. If no block of the new length can
+		 * be allocated, the old block is left as it was. A memory space that is managed by an
+		 * engine moves the block when it grows. It shrinks the block in place, and the engine
+		 * frees the tail; an engine that cannot free part of a block leaves it whole.
+		 * 
+		 * @param address
+		 *            the base address of an allocated block
+		 * @param newLength
+		 *            the new length of the block, in words
+		 * @return the base address of the resized block, or -1 if unable to allocate
+		 * @throws IllegalArgumentException
+		 *            if the new length is not positive, or no block is allocated at the address
+		 */
+		public int realloc(int address, int newLength) {
+			if (newLength <= 0) {
+				throw new IllegalArgumentException("Block size must be positive");
+			}
+			if (engine != null) {
+				int length = allocatedLength(address);
+				if (newLength < length) {
+					engine.shrink(address, newLength);
+					if (journal != null) {
+						journal.logRealloc(address, newLength);
+					}
+					return address;
+				}
+				return move(address, length, newLength);
+			}
+			Node node = allocatedIndex.get(address);
+			if (node == null) {
+				throw new IllegalArgumentException("No block is allocated at " + address);
+			}
+			MemoryBlock block = node.block;
+			int length = block.getLength();
+
+			if (newLength < length) {
+				// Shrink in place, and free the tail
+				block.setLength(newLength);
+				freeList.addLast(newBlock(address + newLength, length - newLength));
+				policy.added(freeList.getLast());
+				freeIndex.put(address + newLength, freeList.getLast());
+				freeWords += length - newLength;
+				defragIfFragmented();
+				if (journal != null) {
+					journal.logRealloc(address, newLength);
+				}
+				return address;
+			}
+			if (newLength == length) {
+				return address;
+			}
+
+			// A block whose new end would be past the end of the memory space cannot grow in
+			// place (comparing the lengths, since the new end may overflow an int)
+			if (newLength > maxSize - address) {
+				return move(address, length, newLength);
+			}
+
+			// Grow in place, if the free blocks that follow the block, which are found by
+			// their base addresses, add up to the extra words
+			int extra = newLength - length;
+			int newEnd = address + newLength;
+			int end = address + length;
+			Node freeNode = freeIndex.get(end);
+			while (freeNode != null && end < newEnd) {
+				end += freeNode.block.getLength();
+				freeNode = (end < newEnd) ? freeIndex.get(end) : null;
+			}
+			if (end >= newEnd) {
+				// Take the free blocks up to the new end, and the front of the last one
+				for (int base = address + length; base < newEnd; ) {
+					freeNode = freeIndex.remove(base);
+					MemoryBlock freeBlock = freeNode.block;
+					int freeLength = freeBlock.getLength();
+					if (base + freeLength <= newEnd) {
+						policy.removed(freeNode);
+						freeList.remove(freeNode);
+						releaseBlock(freeBlock);
+					} else {
+						freeBlock.setBaseAddress(newEnd);
+						freeBlock.setLength(base + freeLength - newEnd);
+						policy.resized(freeNode, base, freeLength);
+						freeIndex.put(newEnd, freeNode);
+					}
+					base += freeLength;
+				}
+				block.setLength(newLength);
+				freeWords -= extra;
+				if (journal != null) {
+					journal.logRealloc(address, newLength);
+				}
+				return address;
+			}
+			return move(address, length, newLength);
+		}
+
+		// Allocates a block of the new length and frees the old block, or returns -1 and
+		// keeps the old block if unable to allocate
+		private int move(int address, int length, int newLength) {
+			if (length == newLength) {
+				return address;
+			}
+			int newAddress = malloc(newLength);
+			if (newAddress != -1) {
+				if (backingStore != null) {
+					// Copy the contents within the off-heap memory
+					int bytes = Math.min(length, newLength) * WORD_BYTES;
+					backingStore.put(newAddress * WORD_BYTES, backingStore, address * WORD_BYTES, bytes);
+				}
+				free(address);
+			}
+			return newAddress;
+		}
+
+		// Returns the length of the block that the engine allocated at the given address
+		private int allocatedLength(int address) {
+			int length = engine.allocatedLength(address);
+			if (length == -1) {
+				throw new IllegalArgumentException("No block is allocated at " + address);
+			}
+			return length;
+		}
+
+		// Serves the pending requests (those whose address is -1) of a batch, in the given order
+		private void allocateBatch(long[] order, int[] lengths, int[] addresses) {
+			if (engine != null || !(policy instanceof FirstFitPolicy)) {
+				for (long entry : order) {
+					int i = (int) entry;
+					if (addresses[i] == -1) {
+						addresses[i] = allocate(lengths[i]);
+					}
+				}
+				return;
+			}
+
+			// The pending requests are between first and last in the order
+			int first = 0;
+			int last = order.length - 1;
+			while (last >= 0 && addresses[(int) order[last]] != -1) {
+				last--;
+			}
+			// Walk the free list with the first-fit segment tree, from one free block that
+			// holds the shortest pending request to the next, so only the blocks that serve
+			// some request are visited
+			FirstFitPolicy firstFit = (FirstFitPolicy) policy;
+			int fromSlot = 0;
+			while (first <= last) {
+				Node freeNode = firstFit.first(fromSlot, lengths[(int) order[last]]);
+				if (freeNode == null) {
+					break;
+				}
+				fromSlot = freeNode.slot + 1;
+				for (int k = first; k <= last; k++) {
+					int i = (int) order[k];
+					int freeLength = freeNode.block.getLength();
+					if (addresses[i] == -1 && lengths[i] <= freeLength) {
+						addresses[i] = allocateFrom(freeNode, lengths[i]);
+						if (lengths[i] == freeLength) {
+							break; // the free block was used up, and its node removed
+						}
+					}
+				}
+				while (first <= last && addresses[(int) order[first]] != -1) {
+					first++;
+				}
+				while (last >= first && addresses[(int) order[last]] != -1) {
+					last--;
+				}
+			}
+		}
+
+		// Moves the block whose base address equals the given address to the free list,
+		// unless the address is not allocated
+		private void release(int address) {
+			Node node = allocatedIndex.remove(address);
+			if (node == null) {
+				return;
+			}
+
+			// Move the block to the free list
+			MemoryBlock block = node.block;
+			allocatedList.remove(node);
+			freeList.addLast(block);
+			policy.added(freeList.getLast());
+			freeIndex.put(address, freeList.getLast());
+			freeWords += block.getLength();
+		}
+
+		// Coalesces proactively when the free list has become too fragmented
+		private void defragIfFragmented() {
+			if (defragThreshold > 0 && freeList.getSize() > nextProactiveDefrag) {
+				proactiveDefragCount++;
+				coalesce();
+				// Wait for the list to grow again, so that free does not defrag on every call
+				nextProactiveDefrag = Math.max(defragThreshold, 2 * freeList.getSize());
+			}
+		}
+
+		/**
+		 * Turns on proactive defragmentation: whenever free leaves more than the given number
+		 * of blocks in the free list, it runs a defrag. The number of free blocks is used as
+		 * the fragmentation metric, since it is known at no cost. Has no effect on a memory
+		 * space that is managed by an engine, since the engines coalesce as they free.
+		 * 
+		 * @param maxFreeBlocks
+		 *            the number of free blocks above which free runs a defrag, or 0 to
+		 *            turn proactive defragmentation off
+		 */
+		public void setDefragThreshold(int maxFreeBlocks) {
+			if (maxFreeBlocks < 0) {
+				throw new IllegalArgumentException("Threshold must not be negative");
+			}
+			this.defragThreshold = maxFreeBlocks;
+			this.nextProactiveDefrag = maxFreeBlocks;
+			if (journal != null) {
+				journal.logDefragState(defragThreshold, nextProactiveDefrag);
+			}
+		}
+
+		// Sets the proactive defragmentation state, as it was when a journal recorded it
+		void setDefragState(int threshold, int nextDefrag) {
+			this.defragThreshold = threshold;
+			this.nextProactiveDefrag = nextDefrag;
+		}
+
+		// Gets the proactive defragmentation threshold, for a journal checkpoint
+		int getDefragThreshold() {
+			return defragThreshold;
+		}
+
+		// Gets the free list size at which the next proactive defrag runs, for a journal checkpoint
+		int getNextProactiveDefrag() {
+			return nextProactiveDefrag;
+		}
+
+		/**
+		 * Gets the number of defrags that malloc ran after failing to find a block
+		 * @return the number of defrags run on malloc failures.
+		 */
+		public long getRetryDefragCount() {
+			return retryDefragCount;
+		}
+
+		/**
+		 * Gets the number of mallocs that succeeded after a defrag, having failed before it
+		 * @return the number of successful retries.
+		 */
+		public long getRetrySuccessCount() {
+			return retrySuccessCount;
+		}
+
+		/**
+		 * Gets the number of defrags that free ran because the free list passed the threshold
+		 * @return the number of proactive defrags.
+		 */
+		public long getProactiveDefragCount() {
+			return proactiveDefragCount;
+		}
+
+		/**
+		 * Backs this memory space with an off-heap region of getMaxSize() words, of WORD_BYTES
+		 * bytes each, so that the contents of the allocated blocks can be read and written
+		 * through the views returned by words and bytes. The words are initially zero, and
+		 * realloc copies the contents of a block that it moves. Does nothing if the memory
+		 * space is already backed.
+		 * 
+		 * @throws IllegalArgumentException
+		 *            if the memory space is too large to be backed by a single region
+		 */
+		public void allocateBackingStore() {
+			if (backingStore != null) {
+				return;
+			}
+			if (maxSize > Integer.MAX_VALUE / WORD_BYTES) {
+				throw new IllegalArgumentException("Memory size is too large for a backing store");
+			}
+			backingStore = ByteBuffer.allocateDirect(maxSize * WORD_BYTES).order(ByteOrder.nativeOrder());
+		}
+
+		/**
+		 * Backs this memory space with the given region, which holds getMaxSize() words of
+		 * WORD_BYTES bytes each, starting at its index 0. This lets the words live outside
+		 * the memory space, for example in the file of a PersistentEngine.
+		 * 
+		 * @param store
+		 *            the region that holds the words of this memory space
+		 * @throws IllegalArgumentException
+		 *            if the region is too small
+		 */
+		public void attachBackingStore(ByteBuffer store) {
+			if (store.capacity() < (long) maxSize * WORD_BYTES) {
+				throw new IllegalArgumentException("Backing store is smaller than the memory space");
+			}
+			backingStore = store;
+		}
+
+		/**
+		 * Checks if this memory space is backed by off-heap memory
+		 * @return true if a backing store was allocated or attached, false otherwise.
+		 */
+		public boolean hasBackingStore() {
+			return backingStore != null;
+		}
+
+		/**
+		 * Returns a view of the words of the allocated block whose base address equals the
+		 * given address. The view shares the off-heap memory, so no data is copied, and it
+		 * covers exactly the block: index 0 is the block's first word, and an access past the
+		 * block's length throws IndexOutOfBoundsException. The view must not be used after
+		 * the block is freed or moved by realloc.
+		 * 
+		 * @param address
+		 *            the base address of an allocated block
+		 * @return a view of the words of the block
+		 * @throws IllegalStateException
+		 *            if the memory space has no backing store
+		 * @throws IllegalArgumentException
+		 *            if no block is allocated at the address
+		 */
+		public IntBuffer words(int address) {
+			return bytes(address).asIntBuffer();
+		}
+
+		/**
+		 * Returns a view of the bytes of the allocated block whose base address equals the
+		 * given address, in the platform's byte order, with the same sharing and bounds as
+		 * the view returned by words.
+		 * 
+		 * @param address
+		 *            the base address of an allocated block
+		 * @return a view of the bytes of the block
+		 * @throws IllegalStateException
+		 *            if the memory space has no backing store
+		 * @throws IllegalArgumentException
+		 *            if no block is allocated at the address
+		 */
+		public ByteBuffer bytes(int address) {
+			if (backingStore == null) {
+				throw new IllegalStateException("Memory space has no backing store");
+			}
+			int length;
+			if (engine != null) {
+				length = allocatedLength(address);
+			} else {
+				Node node = allocatedIndex.get(address);
+				if (node == null) {
+					throw new IllegalArgumentException("No block is allocated at " + address);
+				}
+				length = node.block.getLength();
+			}
+			return backingStore.slice(address * WORD_BYTES, length * WORD_BYTES).order(ByteOrder.nativeOrder());
 		}
 		
+		/**
+		 * Writes a compact binary snapshot of this memory space to the given stream: its size,
+		 * its free list and its allocated list, in list order, and a checksum. The format is
+		 * described in SnapshotFormat. The stream is flushed, but not closed.
+		 * 
+		 * @param out
+		 *            the stream to write the snapshot to
+		 * @throws IOException
+		 *            if the stream cannot be written
+		 * @throws UnsupportedOperationException
+		 *            if this memory space is managed by an engine
+		 */
+		public void snapshot(OutputStream out) throws IOException {
+			if (engine != null) {
+				throw new UnsupportedOperationException("Engines do not support snapshots");
+			}
+			SnapshotFormat.Writer writer = new SnapshotFormat.Writer(out);
+			writer.writeFixed(SnapshotFormat.MAGIC);
+			writer.writeFixed(SnapshotFormat.VERSION);
+			writer.writeVarint(maxSize);
+			writeBlocks(writer, freeList);
+			writeBlocks(writer, allocatedList);
+			writer.finish();
+		}
+
+		// Appends the operations of this memory space to the given journal, or stops if it is null
+		void setJournal(OperationJournal journal) {
+			if (engine != null) {
+				throw new UnsupportedOperationException("Engines do not support journals");
+			}
+			this.journal = journal;
+		}
+
+		// Writes a snapshot for a journal checkpoint. The placement policy is reset first, as
+		// restore resets it, so that the operations after the snapshot replay the same way.
+		void checkpoint(OutputStream out) throws IOException {
+			policy.reset(freeList);
+			snapshot(out);
+		}
+
+		/**
+		 * Reads a memory space from a snapshot written by snapshot. The restored memory space
+		 * uses the first-fit policy.
+		 * 
+		 * @param in
+		 *            the stream to read the snapshot from
+		 * @return the restored memory space
+		 * @throws IOException
+		 *            if the stream cannot be read, or does not hold a valid snapshot
+		 */
+		public static MemorySpace restore(InputStream in) throws IOException {
+			return restore(in, new FirstFitPolicy());
+		}
+
+		/**
+		 * Reads a memory space from a snapshot written by snapshot. The free list and the
+		 * allocated list are restored in the same order, and the index of the allocated blocks
+		 * and the given placement policy are rebuilt from them.
+		 * 
+		 * @param in
+		 *            the stream to read the snapshot from
+		 * @param policy
+		 *            the placement policy of the restored memory space
+		 * @return the restored memory space
+		 * @throws IOException
+		 *            if the stream cannot be read, or does not hold a valid snapshot
+		 */
+		public static MemorySpace restore(InputStream in, PlacementPolicy policy) throws IOException {
+			SnapshotFormat.Reader reader = new SnapshotFormat.Reader(in);
+			if (reader.readFixed() != SnapshotFormat.MAGIC || reader.readFixed() != SnapshotFormat.VERSION) {
+				throw new IOException("Not a memory space snapshot");
+			}
+			long size = reader.readVarint();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Corrupt memory space snapshot: memory size " + size);
+			}
+			MemorySpace space = new MemorySpace((int) size, policy);
+			space.freeList.remove(space.freeList.getFirst());
+			long words = space.readBlocks(reader, space.freeList);
+			space.freeWords = (int) words;
+			words += space.readBlocks(reader, space.allocatedList);
+			reader.verify();
+			if (words != size) {
+				throw new IOException("Corrupt memory space snapshot: blocks hold " + words + " words");
+			}
+			space.checkNoOverlaps();
+			// Sized for the restored blocks up front, so the index is not rehashed while it grows
+			space.allocatedIndex = new IntHashMap<Node>(space.allocatedList.getSize());
+			for (Node node = space.allocatedList.getFirst(); node != null; node = node.next) {
+				space.allocatedIndex.put(node.block.getBaseAddress(), node);
+			}
+			space.freeIndex = new IntHashMap<Node>(space.freeList.getSize());
+			for (Node node = space.freeList.getFirst(); node != null; node = node.next) {
+				space.freeIndex.put(node.block.getBaseAddress(), node);
+			}
+			policy.reset(space.freeList);
+			return space;
+		}
+
+		// Writes the number of blocks of the given list, and its blocks, delta-encoded
+		private static void writeBlocks(SnapshotFormat.Writer writer, LinkedList list) throws IOException {
+			writer.writeVarint(list.getSize());
+			long previousBase = 0;
+			for (Node node = list.getFirst(); node != null; node = node.next) {
+				MemoryBlock block = node.block;
+				writer.writeSignedVarint(block.getBaseAddress() - previousBase);
+				writer.writeVarint(block.getLength());
+				previousBase = block.getBaseAddress();
+			}
+		}
+
+		// Reads blocks written by writeBlocks to the end of the given list, and returns their words
+		private long readBlocks(SnapshotFormat.Reader reader, LinkedList list) throws IOException {
+			long count = reader.readVarint();
+			long words = 0;
+			long base = 0;
+			for (long i = 0; i < count; i++) {
+				base += reader.readSignedVarint();
+				long length = reader.readVarint();
+				if (base < 0 || length <= 0 || base + length > maxSize) {
+					throw new IOException("Corrupt memory space snapshot: block (" + base + " , " + length + ")");
+				}
+				list.addLast(new MemoryBlock((int) base, (int) length));
+				words += length;
+			}
+			return words;
+		}
+
+		// Checks that no two blocks of the free list and the allocated list share a word. The
+		// CRC of a snapshot only catches accidental corruption, and a memory space whose blocks
+		// overlap would hand out the same words twice.
+		private void checkNoOverlaps() throws IOException {
+			// Packs every block as (base address, length), so that sorting orders them by address
+			long[] blocks = new long[freeList.getSize() + allocatedList.getSize()];
+			int n = 0;
+			for (Node node = freeList.getFirst(); node != null; node = node.next) {
+				blocks[n++] = ((long) node.block.getBaseAddress() << 32) | node.block.getLength();
+			}
+			for (Node node = allocatedList.getFirst(); node != null; node = node.next) {
+				blocks[n++] = ((long) node.block.getBaseAddress() << 32) | node.block.getLength();
+			}
+			java.util.Arrays.sort(blocks);
+			long end = 0;
+			for (long block : blocks) {
+				long base = block >>> 32;
+				if (base < end) {
+					throw new IOException("Corrupt memory space snapshot: block (" + base + " , "
+							+ (int) block + ") overlaps the block before it");
+				}
+				end = base + (int) block;
+			}
+		}
+
+		// Returns a memory block with the given base address and length, recycled if possible
+		private MemoryBlock newBlock(int baseAddress, int length) {
+			if (blockPoolSize == 0) {
+				return new MemoryBlock(baseAddress, length);
+			}
+			MemoryBlock block = blockPool[--blockPoolSize];
+			blockPool[blockPoolSize] = null;
+			block.setBaseAddress(baseAddress);
+			block.setLength(length);
+			return block;
+		}
+
+		// Keeps the given block, which is no longer in any list, for reuse by newBlock
+		private void releaseBlock(MemoryBlock block) {
+			if (blockPoolSize < blockPool.length) {
+				blockPool[blockPoolSize++] = block;
+			}
+		}
+
+		/**
+		 * Returns a list of copies of the presently free blocks, for reporting.
+		 * Changing the returned list or its blocks does not affect this memory space.
+		 */
+		public LinkedList freeBlocks() {
+			return (engine != null) ? engine.freeBlocks() : copyOf(freeList);
+		}
+
+		/**
+		 * Returns a list of copies of the presently allocated blocks, for reporting.
+		 * Changing the returned list or its blocks does not affect this memory space.
+		 */
+		public LinkedList allocatedBlocks() {
+			return (engine != null) ? engine.allocatedBlocks() : copyOf(allocatedList);
+		}
+
+		// Returns a list of copies of the blocks of the given list
+		private static LinkedList copyOf(LinkedList list) {
+			LinkedList copy = new LinkedList();
+			ListIterator iterator = list.iterator();
+			while (iterator.hasNext()) {
+				MemoryBlock block = iterator.next();
+				copy.addLast(new MemoryBlock(block.getBaseAddress(), block.getLength()));
+			}
+			return copy;
+		}
+
 		/**
 		 * A textual representation of the free list and the allocated list of this memory space, 
 		 * for debugging purposes.
 		 */
 		public String toString() {
+			if (engine != null) {
+				return engine.freeBlocks().toString() + "\n" + engine.allocatedBlocks().toString() + "";
+			}
 			return freeList.toString() + "\n" + allocatedList.toString() + "";
 		}
 		
 		/**
 		 * Performs defragmantation of this memory space.
-		 * Normally, called by malloc, when it fails to find a memory block of the requested size.
-		 * In this implementation Malloc does not call defrag.
+		 * Called by malloc, when it fails to find a memory block of the requested size
+		 * although there are enough free words, and by free, when proactive defragmentation
+		 * is turned on and the free list has passed the threshold.
 		 */
 		public void defrag() {
-			if (freeList == null || freeList.iterator().hasNext() == false) {
+			coalesce();
+			if (journal != null) {
+				journal.logDefrag();
+			}
+		}
+
+		// Merges adjacent free blocks. Called directly by the operations that defragment as
+		// they go, since their journal records already account for it.
+		private void coalesce() {
+			if (engine != null) {
+				engine.defrag();
+				return;
+			}
+			if (freeList == null || freeList.getSize() == 0) {
 				return; // Nothing to defragment if freeList is empty
 			}
 
 			// Sort the free list by the base address to ensure contiguous blocks are adjacent
 			freeList.sortByBaseAddress();
 
-			// Create a temporary list to store merged free blocks
-			LinkedList mergedFreeList = new LinkedList();
+			// Merge every block which is adjacent to the previous block into it, and
+			// remove it from the list, in a single pass
+			Node previousNode = freeList.getFirst(); // Get the first block in the sorted list
+			Node currentNode = previousNode.next;
 
-			// Create an iterator for the sorted free list
-			ListIterator freeIterator = freeList.iterator();
-			MemoryBlock previousBlock = freeIterator.next(); // Get the first block in the sorted list
-			
-			while (freeIterator.hasNext()) {
-				MemoryBlock currentBlock = freeIterator.next();
+			while (currentNode != null) {
+				Node nextNode = currentNode.next;
+				MemoryBlock previousBlock = previousNode.block;
+				MemoryBlock currentBlock = currentNode.block;
 
 				// If the previous block is adjacent to the current block, merge them
 				if (previousBlock.getBaseAddress() + previousBlock.getLength() == currentBlock.getBaseAddress()) {
-					// Merge blocks
+					// Merge blocks, and recycle the merged node and block
 					previousBlock.setLength(previousBlock.getLength() + currentBlock.getLength());
+					freeList.remove(currentNode);
+					freeIndex.remove(currentBlock.getBaseAddress());
+					releaseBlock(currentBlock);
 				}
 				else{
-					mergedFreeList.addLast(previousBlock);
-					previousBlock = currentBlock; // Move to the next block
+					previousNode = currentNode; // Move to the next block
 				}
+				currentNode = nextNode;
 			}
 			
-			// Add the last block to the merged list
-			mergedFreeList.addLast(previousBlock);
-
-			// Replace the old freeList with the mergedFreeList
-			freeList = mergedFreeList;
+			policy.reset(freeList);
 		}
 	}
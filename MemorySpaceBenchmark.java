@@ -0,0 +1,870 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Benchmarks of the memory space and its engines.
+ *
+ * Usage: java MemorySpaceBenchmark [benchmark]
+ * where benchmark is one of:
+ *   fragmentation - compares the fragmentation left by each engine on the same workloads
+ *   policies      - replays one trace through each placement policy, and compares
+ *                   throughput, p99 malloc latency and final fragmentation
+ *   packed        - compares free list scans and heap footprint of the object lists
+ *                   and of the packed (struct-of-arrays) lists
+ *   scaling       - compares the throughput of a concurrent memory space with one lock
+ *                   and with one lock per stripe, from 1 thread to the number of cores
+ *   tcache        - compares a memory space behind one lock with and without per-thread
+ *                   caches, and reports the cache hit rate and the lock acquisitions
+ *   batch         - compares batches of mallocs and frees issued one by one and issued
+ *                   through mallocBatch and freeBatch, on a fragmented free list
+ *   aligned       - compares mallocAligned with over-allocating by (alignment - 1) words,
+ *                   under each placement policy
+ *   journal       - compares the churn without a journal and with an operation journal
+ *                   that commits groups of several sizes
+ *   workloads     - replays every synthetic workload of WorkloadGenerator through each
+ *                   engine; an optional second argument sets the number of operations
+ *                   (1000000 by default, for example 1000 or 100000000), and an optional
+ *                   third argument the number of live blocks at the top of each shape
+ *                   (a sixteenth of the operations by default)
+ *   micro         - measures the hot paths of LinkedList and MemorySpace, in ns/op and in
+ *                   bytes allocated per op, over list lengths and fragmentation levels; an
+ *                   optional second argument runs only the benchmarks whose names contain it
+ */
+public class MemorySpaceBenchmark {
+
+	// The names of the compared engines. "list" is the memory space's own free list.
+	private static final String[] ENGINES = { "list", "packed", "tlsf", "address", "buddy", "lockfree" };
+
+	// The names of the compared placement policies
+	private static final String[] POLICIES = { "first-fit", "next-fit", "best-fit", "worst-fit" };
+
+	public static void main(String[] args) {
+		String benchmark = (args.length == 0) ? "fragmentation" : args[0];
+		switch (benchmark) {
+			case "fragmentation":
+				fragmentation();
+				break;
+			case "policies":
+				policies();
+				break;
+			case "packed":
+				packed();
+				break;
+			case "scaling":
+				scaling();
+				break;
+			case "tcache":
+				tcache();
+				break;
+			case "batch":
+				batch();
+				break;
+			case "aligned":
+				aligned();
+				break;
+			case "journal":
+				journal();
+				break;
+			case "workloads":
+				long operations = (args.length > 1) ? Long.parseLong(args[1]) : 1000000;
+				workloads(operations, (args.length > 2) ? Integer.parseInt(args[2])
+						: WorkloadGenerator.defaultMaxLive(operations));
+				break;
+			case "micro":
+				micro((args.length > 1) ? args[1] : "");
+				break;
+			default:
+				System.out.println("Unknown benchmark: " + benchmark);
+		}
+	}
+
+	/**
+	 * Creates a memory space of the given size, managed by the named engine.
+	 */
+	static MemorySpace createSpace(String engine, int maxSize) {
+		switch (engine) {
+			case "list":
+				return new MemorySpace(maxSize);
+			case "packed":
+				return new MemorySpace(new PackedEngine(maxSize));
+			case "tlsf":
+				return new MemorySpace(new TlsfEngine(maxSize));
+			case "address":
+				return new MemorySpace(new AddressOrderedEngine(maxSize));
+			case "buddy":
+				return new MemorySpace(new BuddyEngine(maxSize));
+			case "lockfree":
+				return new MemorySpace(new LockFreeEngine(maxSize));
+			default:
+				throw new IllegalArgumentException("Unknown engine: " + engine);
+		}
+	}
+
+	/**
+	 * Creates the named placement policy.
+	 */
+	static PlacementPolicy createPolicy(String policy) {
+		switch (policy) {
+			case "first-fit":
+				return new FirstFitPolicy();
+			case "next-fit":
+				return new NextFitPolicy();
+			case "best-fit":
+				return new BestFitPolicy();
+			case "worst-fit":
+				return new WorstFitPolicy();
+			default:
+				throw new IllegalArgumentException("Unknown policy: " + policy);
+		}
+	}
+
+	///// Fragmentation /////
+
+	/**
+	 * Runs the LinkedListTest workload and two synthetic traces (arbitrary sizes and
+	 * power-of-two sizes) through every engine, and prints the fragmentation each leaves.
+	 * External fragmentation is 1 - (largest free block / free words); internal
+	 * fragmentation is the number of words that are neither free nor allocated.
+	 */
+	private static void fragmentation() {
+		System.out.println("LinkedListTest workload (1000 words)");
+		printHeader();
+		for (String engine : ENGINES) {
+			MemorySpace space = createSpace(engine, 1000);
+			int[] addresses = new int[20];
+			int failures = 0;
+			for (int i = 0; i < addresses.length; i++) {
+				addresses[i] = space.malloc((int) Math.pow(i + 2, 5) % 123);
+				if (addresses[i] == -1) {
+					failures++;
+				}
+			}
+			for (int i = 0; i < addresses.length; i += 2) {
+				freeIfAllocated(space, addresses[i]);
+			}
+			freeIfAllocated(space, addresses[1]);
+			freeIfAllocated(space, addresses[3]);
+			space.defrag();
+			printRow(engine, space, failures);
+		}
+
+		String[] shapes = { "arbitrary", "power-of-two" };
+		for (String shape : shapes) {
+			System.out.println();
+			System.out.println("Synthetic trace, " + shape + " sizes (1M words, 100k operations)");
+			printHeader();
+			for (String engine : ENGINES) {
+				MemorySpace space = createSpace(engine, 1 << 20);
+				int failures = runTrace(space, new Random(42), shape.equals("power-of-two"), 100000);
+				printRow(engine, space, failures);
+			}
+		}
+	}
+
+	// Replays a seeded random malloc/free trace, and returns the number of failed mallocs
+	private static int runTrace(MemorySpace space, Random random, boolean powersOfTwo, int operations) {
+		return replay(space, random, powersOfTwo ? -12 : 4096, operations, 0, null).failures;
+	}
+
+	/**
+	 * Replays a seeded random trace: 55% mallocs and 45% frees of random live blocks, and
+	 * a defrag every defragEvery operations (if positive). Malloc lengths are uniform in
+	 * [1, maxLength], or random powers of two below 2^-maxLength if maxLength is negative.
+	 * If mallocNanos is not null, the duration of every malloc is recorded in it.
+	 */
+	private static TraceResult replay(MemorySpace space, Random random, int maxLength,
+			int operations, int defragEvery, long[] mallocNanos) {
+		TraceResult result = new TraceResult();
+		int[] live = new int[operations];
+		int liveCount = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			if (defragEvery > 0 && i % defragEvery == defragEvery - 1) {
+				space.defrag();
+			} else if (liveCount == 0 || random.nextInt(100) < 55) {
+				int length = (maxLength < 0) ? 1 << random.nextInt(-maxLength) : 1 + random.nextInt(maxLength);
+				long mallocStart = System.nanoTime();
+				int address = space.malloc(length);
+				if (mallocNanos != null) {
+					mallocNanos[result.mallocs] = System.nanoTime() - mallocStart;
+				}
+				result.mallocs++;
+				if (address == -1) {
+					result.failures++;
+				} else {
+					live[liveCount++] = address;
+				}
+			} else {
+				int index = random.nextInt(liveCount);
+				space.free(live[index]);
+				live[index] = live[--liveCount];
+			}
+		}
+		result.nanos = System.nanoTime() - start;
+		return result;
+	}
+
+	/**
+	 * The outcome of a trace replay.
+	 */
+	private static class TraceResult {
+		int mallocs;    // number of malloc operations
+		int failures;   // number of mallocs that returned -1
+		long nanos;     // total duration of the replay
+	}
+
+	///// Placement policies /////
+
+	/**
+	 * Replays the same trace through a memory space with each placement policy.
+	 */
+	private static void policies() {
+		int operations = 200000;
+		System.out.println("Policy trace (64k words, " + operations + " operations, sizes 1..256, defrag every 1000)");
+		System.out.printf("%-10s %12s %14s %10s %10s%n", "policy", "ops/sec", "p99 malloc ns", "failures", "external");
+		for (String policy : POLICIES) {
+			long[] mallocNanos = new long[operations];
+			// Warm up, then measure
+			replay(new MemorySpace(1 << 16, createPolicy(policy)), new Random(7), 256, operations, 1000, mallocNanos);
+			MemorySpace space = new MemorySpace(1 << 16, createPolicy(policy));
+			TraceResult result = replay(space, new Random(7), 256, operations, 1000, mallocNanos);
+			System.out.printf("%-10s %12.0f %14d %10d %10.3f%n", policy,
+					operations * 1e9 / result.nanos, percentile(mallocNanos, result.mallocs, 0.99),
+					result.failures, externalFragmentation(space));
+		}
+	}
+
+	///// Packed lists /////
+
+	/**
+	 * Fragments a memory space into many one-word holes followed by one large free block,
+	 * then times malloc/free pairs that scan every hole before reaching the large block,
+	 * and measures the heap used by the memory space.
+	 */
+	private static void packed() {
+		int[] holeCounts = { 10000, 100000, 1000000 };
+		System.out.printf("%-8s %10s %16s %14s%n", "engine", "holes", "scan ns/block", "heap bytes");
+		for (int holes : holeCounts) {
+			for (String engine : new String[] { "list", "packed" }) {
+				long heapBefore = usedHeap();
+				MemorySpace space = createSpace(engine, 4 * holes);
+				for (int i = 0; i < 2 * holes; i++) {
+					space.malloc(1);
+				}
+				for (int i = 0; i < 2 * holes; i += 2) {
+					space.free(i);
+				}
+				// Sorts the holes by address, ahead of the large free block
+				space.defrag();
+				long heap = usedHeap() - heapBefore;
+
+				int rounds = Math.max(5, 2000000 / holes);
+				long start = System.nanoTime();
+				for (int i = 0; i < rounds; i++) {
+					space.free(space.malloc(2));
+				}
+				double nanosPerBlock = (double) (System.nanoTime() - start) / rounds / holes;
+				System.out.printf("%-8s %10d %16.2f %14d%n", engine, holes, nanosPerBlock, heap);
+			}
+		}
+	}
+
+	///// Concurrent scaling /////
+
+	/**
+	 * Runs the same malloc/free churn on a growing number of threads, against a concurrent
+	 * memory space with a single stripe (one global lock) and against one with a stripe per
+	 * core, and prints the total throughput of each. Each stripe defragments itself when
+	 * its free list grows past 256 blocks, so the scans stay short.
+	 */
+	private static void scaling() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int operations = 200000;
+		System.out.println("Concurrent churn (256k words, " + operations + " operations per thread, sizes 1..64)");
+		System.out.printf("%-8s %16s %16s%n", "threads", "global ops/sec", "striped ops/sec");
+		for (int threads = 1; ; threads = Math.min(2 * threads, cores)) {
+			// Warm up, then measure
+			churn(new ConcurrentMemorySpace(1 << 18, cores), threads, operations);
+			double global = churn(new ConcurrentMemorySpace(1 << 18, 1), threads, operations);
+			double striped = churn(new ConcurrentMemorySpace(1 << 18, cores), threads, operations);
+			System.out.printf("%-8d %16.0f %16.0f%n", threads, global, striped);
+			if (threads == cores) {
+				break;
+			}
+		}
+	}
+
+	// Runs the churn on the given concurrent memory space, defragmenting each stripe when
+	// its free list grows past 256 blocks
+	private static double churn(ConcurrentMemorySpace space, int threads, int operations) {
+		space.setDefragThreshold(256);
+		return churn(space::malloc, space::free, threads, operations);
+	}
+
+	// Runs the churn on the given number of threads, and returns the total operations per second
+	private static double churn(IntUnaryOperator malloc, IntConsumer free, int threads, int operations) {
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			long seed = t;
+			workers[t] = new Thread(() -> {
+				Random random = new Random(seed);
+				int[] live = new int[256];
+				int liveCount = 0;
+				for (int i = 0; i < operations; i++) {
+					if (liveCount == 0 || (liveCount < live.length && random.nextBoolean())) {
+						int address = malloc.applyAsInt(1 + random.nextInt(64));
+						if (address != -1) {
+							live[liveCount++] = address;
+						}
+					} else {
+						int index = random.nextInt(liveCount);
+						free.accept(live[index]);
+						live[index] = live[--liveCount];
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return 0;
+			}
+		}
+		return (double) threads * operations * 1e9 / (System.nanoTime() - start);
+	}
+
+	///// Per-thread caches /////
+
+	/**
+	 * Runs the concurrent churn on a growing number of threads, against a memory space behind
+	 * a single lock, and against the same memory space behind per-thread caches, and prints
+	 * the throughput of each, with the cache hit rate and the lock acquisitions per operation.
+	 */
+	private static void tcache() {
+		int cores = Runtime.getRuntime().availableProcessors();
+		int operations = 200000;
+		System.out.println("Concurrent churn (256k words, " + operations + " operations per thread, sizes 1..64)");
+		System.out.printf("%-8s %16s %16s %10s %12s%n", "threads", "locked ops/sec", "cached ops/sec", "hit rate", "locks/op");
+		for (int threads = 1; ; threads = Math.min(2 * threads, cores)) {
+			// Warm up, then measure
+			churn(newCachedSpace(), threads, operations);
+			double locked = churn(new ConcurrentMemorySpace(1 << 18, 1), threads, operations);
+			ThreadCacheAllocator cached = newCachedSpace();
+			double throughput = churn(cached, threads, operations);
+			System.out.printf("%-8d %16.0f %16.0f %10.3f %12.3f%n", threads, locked, throughput,
+					cached.getHitRate(), (double) cached.getLockAcquisitions() / threads / operations);
+			if (threads == cores) {
+				break;
+			}
+		}
+	}
+
+	private static ThreadCacheAllocator newCachedSpace() {
+		MemorySpace space = new MemorySpace(1 << 18);
+		space.setDefragThreshold(256);
+		return new ThreadCacheAllocator(space);
+	}
+
+	private static double churn(ThreadCacheAllocator allocator, int threads, int operations) {
+		return churn(allocator::malloc, allocator::free, threads, operations);
+	}
+
+	///// Batches /////
+
+	/**
+	 * Fragments a memory space into one-word holes followed by one large free block, then
+	 * times batches of 64 mallocs (of 2 to 16 words, so they skip every hole) and their frees.
+	 * The rounds do not defrag, so the time of a batch is not hidden by the time of a defrag
+	 * of the whole free list; the freed blocks serve the next round.
+	 */
+	private static void batch() {
+		int[] holeCounts = { 1000, 10000, 100000 };
+		int batchSize = 64;
+		System.out.printf("%-8s %16s %16s%n", "holes", "single ns/block", "batch ns/block");
+		for (int holes : holeCounts) {
+			int rounds = 20000;
+			int[] lengths = new int[batchSize];
+			Random random = new Random(3);
+			for (int i = 0; i < batchSize; i++) {
+				lengths[i] = 2 + random.nextInt(15);
+			}
+			int[] addresses = new int[batchSize];
+
+			MemorySpace single = fragmentedSpace(holes);
+			long start = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				for (int i = 0; i < batchSize; i++) {
+					addresses[i] = single.malloc(lengths[i]);
+				}
+				for (int i = 0; i < batchSize; i++) {
+					single.free(addresses[i]);
+				}
+			}
+			double singleNanos = (double) (System.nanoTime() - start) / rounds / batchSize;
+
+			MemorySpace batched = fragmentedSpace(holes);
+			start = System.nanoTime();
+			for (int r = 0; r < rounds; r++) {
+				batched.mallocBatch(lengths, addresses);
+				batched.freeBatch(addresses);
+			}
+			double batchNanos = (double) (System.nanoTime() - start) / rounds / batchSize;
+			System.out.printf("%-8d %16.1f %16.1f%n", holes, singleNanos, batchNanos);
+		}
+	}
+
+	// Returns a memory space whose free list holds the given number of one-word holes,
+	// sorted by address, followed by one large free block
+	private static MemorySpace fragmentedSpace(int holes) {
+		MemorySpace space = new MemorySpace(4 * holes + (1 << 16));
+		for (int i = 0; i < 2 * holes; i++) {
+			space.malloc(1);
+		}
+		for (int i = 0; i < 2 * holes; i += 2) {
+			space.free(i);
+		}
+		space.defrag();
+		return space;
+	}
+
+	///// Aligned allocation /////
+
+	/**
+	 * Replays the same trace of aligned mallocs (of 1 to 256 words, aligned to 8, 64 or 512
+	 * words) and frees under each placement policy, once with mallocAligned and once with
+	 * the workaround of over-allocating by (alignment - 1) words, and prints the failures,
+	 * the words wasted by the live blocks and the final external fragmentation.
+	 */
+	private static void aligned() {
+		int operations = 100000;
+		System.out.println("Aligned trace (256k words, " + operations + " operations, defrag every 1000)");
+		System.out.printf("%-10s %-10s %10s %14s %10s%n", "policy", "method", "failures", "wasted words", "external");
+		for (String policy : POLICIES) {
+			for (boolean overAllocate : new boolean[] { false, true }) {
+				MemorySpace space = new MemorySpace(1 << 18, createPolicy(policy));
+				Random random = new Random(11);
+				int[] alignments = { 8, 64, 512 };
+				int[] live = new int[operations];
+				int[] requested = new int[operations];
+				int liveCount = 0;
+				int failures = 0;
+				for (int i = 0; i < operations; i++) {
+					if (i % 1000 == 999) {
+						space.defrag();
+					} else if (liveCount == 0 || random.nextInt(100) < 55) {
+						int length = 1 + random.nextInt(256);
+						int alignment = alignments[random.nextInt(alignments.length)];
+						// The over-allocated block is freed through its own base address
+						int address = overAllocate ? space.malloc(length + alignment - 1)
+								: space.mallocAligned(length, alignment);
+						if (address == -1) {
+							failures++;
+						} else {
+							requested[liveCount] = length;
+							live[liveCount++] = address;
+						}
+					} else {
+						int index = random.nextInt(liveCount);
+						space.free(live[index]);
+						live[index] = live[--liveCount];
+						requested[index] = requested[liveCount];
+					}
+				}
+				long allocated = 0;
+				ListIterator iterator = space.allocatedBlocks().iterator();
+				while (iterator.hasNext()) {
+					allocated += iterator.next().getLength();
+				}
+				long wasted = allocated;
+				for (int i = 0; i < liveCount; i++) {
+					wasted -= requested[i];
+				}
+				System.out.printf("%-10s %-10s %10d %14d %10.3f%n", policy, overAllocate ? "over" : "aligned",
+						failures, wasted, externalFragmentation(space));
+			}
+		}
+	}
+
+	///// Journal /////
+
+	/**
+	 * Runs the single-threaded churn on a memory space without a journal, and on journaled
+	 * memory spaces whose groups hold from 1 to 4096 records, and prints the throughput of
+	 * each and the number of forces of the log. The journal is kept in a temporary directory.
+	 */
+	private static void journal() {
+		int operations = 200000;
+		System.out.println("Journaled churn (256k words, " + operations + " operations, sizes 1..64)");
+		System.out.printf("%-12s %16s %10s %12s%n", "group size", "ops/sec", "commits", "slowdown");
+		MemorySpace plain = new MemorySpace(1 << 18);
+		plain.setDefragThreshold(256);
+		churn(plain::malloc, plain::free, 1, operations); // warm up
+		plain = new MemorySpace(1 << 18);
+		plain.setDefragThreshold(256);
+		double baseline = churn(plain::malloc, plain::free, 1, operations);
+		System.out.printf("%-12s %16.0f %10d %12.2f%n", "none", baseline, 0, 1.0);
+		for (int groupSize : new int[] { 1, 8, 64, 512, 4096 }) {
+			// Each force costs about the same, so the unbatched run needs fewer operations
+			int count = (groupSize == 1) ? operations / 20 : operations;
+			try {
+				Path directory = Files.createTempDirectory("memory-journal");
+				OperationJournal journal = OperationJournal.open(directory, 1 << 18);
+				journal.setGroupSize(groupSize);
+				MemorySpace space = journal.getSpace();
+				space.setDefragThreshold(256);
+				double throughput = churn(space::malloc, space::free, 1, count);
+				journal.close();
+				System.out.printf("%-12d %16.0f %10d %12.2f%n", groupSize, throughput, journal.getCommitCount(),
+						baseline / throughput);
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+					for (Path file : files) {
+						Files.delete(file);
+					}
+				}
+				Files.delete(directory);
+			} catch (IOException e) {
+				System.out.println("Journal benchmark failed: " + e);
+				return;
+			}
+		}
+	}
+
+	///// Synthetic workloads /////
+
+	/**
+	 * Replays every shape of WorkloadGenerator with every size distribution, with the same
+	 * seed, through each engine, and prints the throughput, the failed mallocs, the p99 malloc
+	 * latency and the final external fragmentation. The workloads defrag every 10000
+	 * operations, since the free lists that do not coalesce as they free would otherwise
+	 * grow without bound while no malloc fails. The memory space has room for maxLive blocks
+	 * of 128 words (at least 1M words, and at most 1G words), more than the mean length of
+	 * every distribution, so that a larger live set is not cut short by failed mallocs.
+	 */
+	private static void workloads(long operations, int maxLive) {
+		int maxSize = (int) Math.min(1 << 30, Math.max(1 << 20, 128L * maxLive));
+		System.out.println("Synthetic workloads (" + maxSize + " words, " + operations + " operations, up to "
+				+ maxLive + " live blocks, defrag every 10000)");
+		System.out.printf("%-30s %-9s %12s %10s %12s %10s%n", "workload", "engine", "ops/sec", "failures",
+				"p99 malloc", "external");
+		String[] shapes = { "ramp", "peak", "plateau", "producer-consumer" };
+		String[] distributions = { "uniform", "exponential", "bimodal" };
+		for (String shape : shapes) {
+			for (String sizes : distributions) {
+				for (String engine : ENGINES) {
+					MemorySpace space = createSpace(engine, maxSize);
+					TraceReplay replay = new TraceReplay(space);
+					replay.setSampleInterval(Long.MAX_VALUE);
+					WorkloadGenerator workload = new WorkloadGenerator(WorkloadGenerator.shape(shape),
+							WorkloadGenerator.sizes(sizes), operations, maxLive, 42);
+					workload.setDefragInterval(10000);
+					try {
+						replay.replay(workload);
+					} catch (IOException e) {
+						// A generated workload is never malformed
+						throw new IllegalStateException(e);
+					}
+					System.out.printf("%-30s %-9s %12.0f %10d %12d %10.3f%n", shape + "/" + sizes, engine,
+							replay.getOpsPerSecond(), replay.getFailedMallocs(),
+							replay.getLatency(TraceFormat.MALLOC, 0.99), externalFragmentation(space));
+				}
+			}
+		}
+	}
+
+	///// Micro-benchmarks /////
+
+	// The lengths of the lists and of the free lists, and the fractions of the free blocks
+	// that are one-word holes (the fragmentation levels)
+	private static final int[] MICRO_LENGTHS = { 100, 1000, 10000 };
+	private static final double[] MICRO_FRAGMENTATION = { 0.0, 0.5, 0.9 };
+
+	// The iterations of every micro-benchmark, and the time that an iteration aims at
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASURED_ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 50000000;
+
+	// Consumes the results of the measured operations, so that the compiler cannot drop them
+	private static long sink;
+
+	/**
+	 * A micro-benchmark: prepare builds, outside of the measurement, the state for a given
+	 * number of operations, and returns the code that performs them, which is measured.
+	 */
+	private interface Micro {
+		IntConsumer prepare(int operations);
+	}
+
+	/**
+	 * Measures LinkedList.getNode, indexOf, add and remove (in pairs, so the list keeps its
+	 * length), and ListIterator traversal, over lists of several lengths, and MemorySpace
+	 * malloc, free and defrag over free lists of several lengths and fragmentation levels.
+	 * Every benchmark is calibrated so that an iteration takes about 50 ms, then warmed up,
+	 * then measured; the time is reported as the mean and the standard deviation over the
+	 * measured iterations, and the bytes allocated by the measured code, as counted by the
+	 * thread's allocation counter, are reported per operation. A steady rise in either one
+	 * points to a regression in the hot paths.
+	 */
+	private static void micro(String filter) {
+		System.out.println("Micro-benchmarks (" + WARMUP_ITERATIONS + " warm-up and " + MEASURED_ITERATIONS
+				+ " measured iterations of about 50 ms each)");
+		System.out.printf("%-20s %8s %6s %14s %12s %10s%n", "benchmark", "length", "frag", "ns/op", "stddev",
+				"bytes/op");
+		for (int length : MICRO_LENGTHS) {
+			microRun(filter, "list.getNode", length, -1, Integer.MAX_VALUE, operations -> {
+				LinkedList list = microList(length);
+				int[] indices = randomIndices(operations, length);
+				return count -> {
+					for (int i = 0; i < count; i++) {
+						sink += list.getNode(indices[i]).block.getBaseAddress();
+					}
+				};
+			});
+			microRun(filter, "list.indexOf", length, -1, Integer.MAX_VALUE, operations -> {
+				LinkedList list = microList(length);
+				int[] indices = randomIndices(operations, length);
+				MemoryBlock[] blocks = new MemoryBlock[operations];
+				for (int i = 0; i < operations; i++) {
+					blocks[i] = new MemoryBlock(indices[i], 1);
+				}
+				return count -> {
+					for (int i = 0; i < count; i++) {
+						sink += list.indexOf(blocks[i]);
+					}
+				};
+			});
+			microRun(filter, "list.add+remove", length, -1, Integer.MAX_VALUE, operations -> {
+				LinkedList list = microList(length);
+				int[] indices = randomIndices(operations, length);
+				MemoryBlock block = new MemoryBlock(-1, 1);
+				return count -> {
+					for (int i = 0; i < count; i++) {
+						list.add(indices[i], block);
+						list.remove(indices[i]);
+					}
+					sink += list.getSize();
+				};
+			});
+			microRun(filter, "list.iterate", length, -1, Integer.MAX_VALUE, operations -> {
+				LinkedList list = microList(length);
+				return count -> {
+					for (int i = 0; i < count; i++) {
+						ListIterator iterator = list.iterator();
+						while (iterator.hasNext()) {
+							sink += iterator.next().getLength();
+						}
+					}
+				};
+			});
+		}
+		for (int length : MICRO_LENGTHS) {
+			for (double fragmentation : MICRO_FRAGMENTATION) {
+				// Every malloc takes 4 words, from the first 8-word block after the holes
+				microRun(filter, "space.malloc", length, fragmentation, Integer.MAX_VALUE, operations -> {
+					MemorySpace space = microSpace(length, fragmentation, 4 * operations, false);
+					return count -> {
+						for (int i = 0; i < count; i++) {
+							sink += space.malloc(4);
+						}
+					};
+				});
+				microRun(filter, "space.free", length, fragmentation, Integer.MAX_VALUE, operations -> {
+					MemorySpace space = microSpace(length, fragmentation, 4 * operations, false);
+					int[] addresses = new int[operations];
+					for (int i = 0; i < operations; i++) {
+						addresses[i] = space.malloc(4);
+					}
+					return count -> {
+						for (int i = 0; i < count; i++) {
+							space.free(addresses[i]);
+						}
+					};
+				});
+				// Every defrag needs a fragmented space of its own; their total size is bounded
+				microRun(filter, "space.defrag", length, fragmentation, Math.max(1, 2000000 / length), operations -> {
+					MemorySpace[] spaces = new MemorySpace[operations];
+					for (int i = 0; i < operations; i++) {
+						spaces[i] = microSpace(length, fragmentation, 1, true);
+					}
+					return count -> {
+						for (int i = 0; i < count; i++) {
+							spaces[i].defrag();
+						}
+					};
+				});
+			}
+		}
+	}
+
+	// Calibrates, warms up and measures one micro-benchmark, and prints its row
+	private static void microRun(String filter, String name, int length, double fragmentation, int maxOperations,
+			Micro micro) {
+		if (!name.contains(filter)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+
+		// Double the operations of an iteration until it takes about ITERATION_NANOS
+		int operations = 1;
+		while (operations < maxOperations) {
+			IntConsumer body = micro.prepare(operations);
+			long start = System.nanoTime();
+			body.accept(operations);
+			if (System.nanoTime() - start >= ITERATION_NANOS / 2) {
+				break;
+			}
+			operations = (int) Math.min(maxOperations, 2L * operations);
+		}
+
+		double[] nanosPerOperation = new double[MEASURED_ITERATIONS];
+		long allocated = 0;
+		for (int iteration = -WARMUP_ITERATIONS; iteration < MEASURED_ITERATIONS; iteration++) {
+			IntConsumer body = micro.prepare(operations);
+			long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+			long start = System.nanoTime();
+			body.accept(operations);
+			long elapsed = System.nanoTime() - start;
+			long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+			if (iteration >= 0) {
+				nanosPerOperation[iteration] = (double) elapsed / operations;
+				allocated += bytes;
+			}
+		}
+		double mean = 0;
+		for (double nanos : nanosPerOperation) {
+			mean += nanos / MEASURED_ITERATIONS;
+		}
+		double variance = 0;
+		for (double nanos : nanosPerOperation) {
+			variance += (nanos - mean) * (nanos - mean) / MEASURED_ITERATIONS;
+		}
+		System.out.printf("%-20s %8d %6s %14.1f %12.1f %10.1f%n", name, length,
+				(fragmentation < 0) ? "-" : String.format("%.1f", fragmentation), mean, Math.sqrt(variance),
+				(double) allocated / MEASURED_ITERATIONS / operations);
+	}
+
+	// Returns a list of the given length, whose blocks have the base addresses 0, 1, 2, ...
+	private static LinkedList microList(int length) {
+		LinkedList list = new LinkedList();
+		for (int i = 0; i < length; i++) {
+			list.addLast(new MemoryBlock(i, 1));
+		}
+		return list;
+	}
+
+	private static int[] randomIndices(int count, int bound) {
+		Random random = new Random(count);
+		int[] indices = new int[count];
+		for (int i = 0; i < count; i++) {
+			indices[i] = random.nextInt(bound);
+		}
+		return indices;
+	}
+
+	// Returns a memory space whose free list holds the given number of blocks, of which the
+	// given fraction are one-word holes between allocated words, and the others are adjacent
+	// 8-word blocks, followed by a tail block of the given length. The blocks are freed in
+	// address order, so that a malloc scans the holes before it finds an 8-word block, or
+	// in random order, as a defrag usually finds them.
+	private static MemorySpace microSpace(int length, double fragmentation, int tail, boolean shuffled) {
+		int holes = (int) Math.round(fragmentation * length);
+		int blocks = length - holes;
+		MemorySpace space = new MemorySpace(2 * holes + 8 * blocks + tail);
+		int[] addresses = new int[length + 1];
+		for (int i = 0; i < holes; i++) {
+			addresses[i] = space.malloc(1);
+			space.malloc(1);
+		}
+		for (int i = holes; i < length; i++) {
+			addresses[i] = space.malloc(8);
+		}
+		addresses[length] = space.malloc(tail);
+		if (shuffled) {
+			Random random = new Random(length);
+			for (int i = addresses.length - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int address = addresses[i];
+				addresses[i] = addresses[j];
+				addresses[j] = address;
+			}
+		}
+		for (int address : addresses) {
+			space.free(address);
+		}
+		return space;
+	}
+
+	// Returns the number of heap bytes in use, after a garbage collection
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// Returns the given percentile of the first count values of the given array
+	private static long percentile(long[] values, int count, double fraction) {
+		if (count == 0) {
+			return 0;
+		}
+		long[] sorted = java.util.Arrays.copyOf(values, count);
+		java.util.Arrays.sort(sorted);
+		return sorted[Math.min(count - 1, (int) (fraction * count))];
+	}
+
+	// Returns 1 - (largest free block / free words) for the given memory space
+	private static double externalFragmentation(MemorySpace space) {
+		long free = 0;
+		long largest = 0;
+		ListIterator iterator = space.freeBlocks().iterator();
+		while (iterator.hasNext()) {
+			MemoryBlock block = iterator.next();
+			free += block.getLength();
+			largest = Math.max(largest, block.getLength());
+		}
+		return (free == 0) ? 0 : 1 - (double) largest / free;
+	}
+
+	private static void freeIfAllocated(MemorySpace space, int address) {
+		if (address != -1) {
+			space.free(address);
+		}
+	}
+
+	private static void printHeader() {
+		System.out.printf("%-10s %10s %10s %12s %10s %10s%n",
+				"engine", "failures", "free", "largest", "external", "internal");
+	}
+
+	private static void printRow(String engine, MemorySpace space, int failures) {
+		long free = 0;
+		long largest = 0;
+		ListIterator iterator = space.freeBlocks().iterator();
+		while (iterator.hasNext()) {
+			MemoryBlock block = iterator.next();
+			free += block.getLength();
+			largest = Math.max(largest, block.getLength());
+		}
+		long allocated = 0;
+		iterator = space.allocatedBlocks().iterator();
+		while (iterator.hasNext()) {
+			allocated += iterator.next().getLength();
+		}
+		double external = (free == 0) ? 0 : 1 - (double) largest / free;
+		long internal = space.getMaxSize() - free - allocated;
+		System.out.printf("%-10s %10d %10d %12d %10.3f %10d%n",
+				engine, failures, free, largest, external, internal);
+	}
+}
@@ -0,0 +1,41 @@
+/**
+ * The next-fit placement policy: like first-fit, but each search starts where the
+ * previous search stopped (at the roving pointer), and wraps around to the start of
+ * the free list. This spreads the allocations over the whole free list, instead of
+ * splitting the blocks at its start again and again. Both parts of the search are
+ * done in the policy's segment tree, from the slot of the roving pointer.
+ */
+public class NextFitPolicy extends OrderIndexedPolicy {
+
+	// The node where the next search starts, or null to start at the first node
+	private Node rover;
+
+	public Node select(LinkedList freeList, int length) {
+		return selectAligned(freeList, length, 1);
+	}
+
+	public Node selectAligned(LinkedList freeList, int length, int alignment) {
+		// Search from the rover to the end of the list, and then wrap around. The blocks
+		// after the rover are searched again, but none of them fits.
+		Node found = (rover != null) ? firstAligned(rover.slot, length, alignment) : null;
+		if (found == null) {
+			found = firstAligned(0, length, alignment);
+		}
+		if (found != null) {
+			rover = found;
+		}
+		return found;
+	}
+
+	public void removed(Node node) {
+		if (node == rover) {
+			rover = node.next;
+		}
+		super.removed(node);
+	}
+
+	public void reset(LinkedList freeList) {
+		rover = null;
+		super.reset(freeList);
+	}
+}
@@ -1,10 +1,13 @@
 /**
- * Represents a node in a linked list. Each node points to a MemoryBlock object. 
+ * Represents a node in a doubly-linked list. Each node points to a MemoryBlock object. 
  */
 public class Node {
 
 	MemoryBlock block;  // The memory block that this node points at
 	Node next = null;   // The next node in the list
+	Node prev = null;   // The previous node in the list
+	LinkedList owner = null; // The list that this node belongs to
+	int slot = -1;      // The slot of this node in an OrderIndexedPolicy, while it is free
 
 	/**
 	 * Constructs a new node, pointing to the given memory block.
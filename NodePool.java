@@ -0,0 +1,70 @@
+/**
+ * A pool of recycled nodes. A list that uses a pool takes its new nodes from the pool,
+ * and returns its removed nodes to it, so a steady stream of additions and removals
+ * creates no garbage. A pool may be shared by several lists, so that nodes removed
+ * from one list are reused by another.
+ * <p>
+ * A node returned to the pool must no longer be used by anyone else.
+ */
+public class NodePool {
+
+	private Node top;         // the first recycled node; the others are linked by next
+	private int size;         // number of recycled nodes in this pool
+	private int maxSize;      // the pool keeps at most this number of nodes
+
+	/**
+	 * Constructs a new, empty pool that keeps at most the given number of nodes.
+	 * 
+	 * @param maxSize
+	 *        the maximal number of recycled nodes
+	 */
+	public NodePool(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Gets the number of recycled nodes in this pool
+	 * @return the number of nodes.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns a node that points to the given block: a recycled node if there is one,
+	 * or a new node otherwise.
+	 * 
+	 * @param block
+	 *        the memory block that the node points at
+	 */
+	public Node obtain(MemoryBlock block) {
+		if (top == null) {
+			return new Node(block);
+		}
+		Node node = top;
+		top = node.next;
+		size--;
+		node.next = null;
+		node.block = block;
+		return node;
+	}
+
+	/**
+	 * Returns the given node to this pool, unless the pool is full.
+	 * 
+	 * @param node
+	 *        a node which is no longer in any list
+	 */
+	public void release(Node node) {
+		node.block = null;
+		node.prev = null;
+		node.owner = null;
+		if (size < maxSize) {
+			node.next = top;
+			top = node;
+			size++;
+		} else {
+			node.next = null;
+		}
+	}
+}
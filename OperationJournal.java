@@ -0,0 +1,561 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal that makes a memory space durable without a snapshot on every
+ * operation: every malloc, free and defrag of the memory space appends a compact record to
+ * a log file, and opening the journal again rebuilds the memory space from the last
+ * snapshot and the records logged after it.
+ * <p>
+ * The journal keeps, in its directory, a snapshot (snapshot.N) and a log (journal.N) of the
+ * same generation N. There is no snapshot of generation 0, which starts from an empty memory
+ * space. A record holds an operation code, its arguments and its result, as varints. The
+ * records are written in groups: a group is framed by its length and its CRC-32, and is
+ * written and forced to the storage device once it holds groupSize records, or when commit
+ * is called, so all the records of a group share the cost of one force. An operation is
+ * durable once its group is committed. Opening the journal replays every complete group, and
+ * cuts the log off at the first group that was only partly written.
+ * <p>
+ * Replay performs the operations again, and checks that every malloc returns the address
+ * that it returned when it was recorded; this holds since the placement policies decide from
+ * the free list and their own state alone, and checkpoint resets the policy as restore does.
+ * checkpoint writes a new snapshot and starts a new log, so that replay stays short. The
+ * journal records the blocks of the memory space, not the words of its backing store.
+ */
+public class OperationJournal implements Closeable {
+
+	private static final int MAGIC = 0x4D4A4E4C; // "MJNL"
+	private static final int VERSION = 1;
+
+	// The size of the log header (MAGIC and VERSION), and of a group's length and checksum
+	private static final int HEADER_BYTES = 8;
+	private static final int FRAME_BYTES = 8;
+
+	// The longest varint of an int
+	private static final int MAX_VARINT_BYTES = 5;
+
+	// The operation codes of the records
+	private static final byte MALLOC = 1;
+	private static final byte MALLOC_ALIGNED = 2;
+	private static final byte MALLOC_BATCH = 3;
+	private static final byte FREE = 4;
+	private static final byte FREE_BATCH = 5;
+	private static final byte REALLOC = 6;
+	private static final byte DEFRAG = 7;
+	private static final byte DEFRAG_STATE = 8;
+
+	// The directory of the journal, and the generation of its present snapshot and log
+	private final Path directory;
+	private long generation;
+
+	// The journaled memory space
+	private final MemorySpace space;
+
+	// The log of the present generation, open for appending
+	private FileChannel log;
+
+	// The group being filled: room for its frame, followed by its records
+	private ByteBuffer group = ByteBuffer.allocate(1 << 12);
+	private int groupRecords;
+	private int groupSize = 1;
+	private final CRC32 crc = new CRC32();
+
+	// The number of groups committed since the journal was opened
+	private long commitCount;
+
+	/**
+	 * Opens the journal in the given directory, creating it if needed, and rebuilds its
+	 * memory space, which uses the first-fit policy.
+	 *
+	 * @param directory
+	 *        the directory of the journal
+	 * @param maxSize
+	 *        the size of the memory space
+	 * @return the opened journal
+	 * @throws IOException
+	 *         if the journal cannot be read or written, or does not match its snapshot
+	 */
+	public static OperationJournal open(Path directory, int maxSize) throws IOException {
+		return open(directory, maxSize, new FirstFitPolicy());
+	}
+
+	/**
+	 * Opens the journal in the given directory, creating it if needed, and rebuilds its
+	 * memory space from the last snapshot and the log that follows it. The memory space must
+	 * be opened with the same placement policy with which it was journaled.
+	 *
+	 * @param directory
+	 *        the directory of the journal
+	 * @param maxSize
+	 *        the size of the memory space
+	 * @param policy
+	 *        the placement policy of the memory space
+	 * @return the opened journal
+	 * @throws IOException
+	 *         if the journal cannot be read or written, or does not match its snapshot
+	 */
+	public static OperationJournal open(Path directory, int maxSize, PlacementPolicy policy) throws IOException {
+		Files.createDirectories(directory);
+		long generation = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot.*")) {
+			for (Path file : files) {
+				generation = Math.max(generation, generationOf(file));
+			}
+		}
+		MemorySpace space;
+		if (generation == 0) {
+			space = new MemorySpace(maxSize, policy);
+		} else {
+			try (InputStream in = Files.newInputStream(snapshotPath(directory, generation))) {
+				space = MemorySpace.restore(in, policy);
+			}
+			if (space.getMaxSize() != maxSize) {
+				throw new IOException("Journal holds a memory space of size " + space.getMaxSize());
+			}
+		}
+		return new OperationJournal(directory, generation, space);
+	}
+
+	private OperationJournal(Path directory, long generation, MemorySpace space) throws IOException {
+		this.directory = directory;
+		this.generation = generation;
+		this.space = space;
+		group.position(FRAME_BYTES);
+		log = FileChannel.open(logPath(directory, generation), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			replay();
+		} catch (IOException e) {
+			log.close();
+			throw e;
+		}
+		deleteOtherGenerations();
+		space.setJournal(this);
+	}
+
+	/**
+	 * Returns the memory space whose operations this journal records.
+	 */
+	public MemorySpace getSpace() {
+		return space;
+	}
+
+	/**
+	 * Sets the number of records in a group: the journal forces its log to the storage device
+	 * once every groupSize operations. Larger groups cost less per operation, and lose more
+	 * operations to a crash.
+	 *
+	 * @param groupSize
+	 *        the number of records after which a group is committed, 1 by default
+	 */
+	public void setGroupSize(int groupSize) {
+		if (groupSize <= 0) {
+			throw new IllegalArgumentException("Group size must be positive");
+		}
+		this.groupSize = groupSize;
+	}
+
+	/**
+	 * Gets the number of groups committed since the journal was opened
+	 * @return the number of forces of the log.
+	 */
+	public long getCommitCount() {
+		return commitCount;
+	}
+
+	/**
+	 * Writes the records of the present group to the log, and forces the log to the storage
+	 * device, so that all the operations so far are durable.
+	 *
+	 * @throws IOException
+	 *         if the log cannot be written
+	 */
+	public void commit() throws IOException {
+		if (groupRecords == 0) {
+			return;
+		}
+		writeGroup(log);
+		groupRecords = 0;
+		commitCount++;
+	}
+
+	/**
+	 * Writes a snapshot of the memory space, and starts a new, empty log after it. The new
+	 * log and the snapshot are complete before the snapshot takes the place of the old one,
+	 * so a crash at any point leaves either the old generation or the new one whole.
+	 *
+	 * @throws IOException
+	 *         if the snapshot or the new log cannot be written
+	 */
+	public void checkpoint() throws IOException {
+		commit();
+		long next = generation + 1;
+		Path temporary = directory.resolve("snapshot." + next + ".tmp");
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			space.checkpoint(Channels.newOutputStream(channel));
+			channel.force(true);
+		}
+
+		// Snapshots do not hold the proactive defrag state, so the new log starts with it
+		FileChannel nextLog = FileChannel.open(logPath(directory, next), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			writeHeader(nextLog);
+			putDefragState(space.getDefragThreshold(), space.getNextProactiveDefrag());
+			writeGroup(nextLog);
+			Files.move(temporary, snapshotPath(directory, next), StandardCopyOption.ATOMIC_MOVE);
+			syncDirectory();
+		} catch (IOException e) {
+			nextLog.close();
+			throw e;
+		}
+		log.close();
+		log = nextLog;
+		generation = next;
+		deleteOtherGenerations();
+	}
+
+	/**
+	 * Commits the present group, stops recording the operations of the memory space, and
+	 * closes the log.
+	 */
+	public void close() throws IOException {
+		try {
+			commit();
+		} finally {
+			space.setJournal(null);
+			log.close();
+		}
+	}
+
+	///// Recording, called by the memory space after every operation /////
+
+	void logMalloc(int length, int address) {
+		reserve(1 + 2 * MAX_VARINT_BYTES);
+		group.put(MALLOC);
+		putVarint(length);
+		putVarint(address + 1);
+		recorded();
+	}
+
+	void logMallocAligned(int length, int alignment, int address) {
+		reserve(1 + 3 * MAX_VARINT_BYTES);
+		group.put(MALLOC_ALIGNED);
+		putVarint(length);
+		putVarint(alignment);
+		putVarint(address + 1);
+		recorded();
+	}
+
+	void logMallocBatch(int[] lengths, int[] addresses) {
+		reserve(1 + (1 + 2 * lengths.length) * MAX_VARINT_BYTES);
+		group.put(MALLOC_BATCH);
+		putVarint(lengths.length);
+		for (int i = 0; i < lengths.length; i++) {
+			putVarint(lengths[i]);
+			putVarint(addresses[i] + 1);
+		}
+		recorded();
+	}
+
+	void logFree(int address) {
+		reserve(1 + MAX_VARINT_BYTES);
+		group.put(FREE);
+		putVarint(address + 1);
+		recorded();
+	}
+
+	void logFreeBatch(int[] addresses) {
+		reserve(1 + (1 + addresses.length) * MAX_VARINT_BYTES);
+		group.put(FREE_BATCH);
+		putVarint(addresses.length);
+		for (int address : addresses) {
+			putVarint(address + 1);
+		}
+		recorded();
+	}
+
+	void logRealloc(int address, int newLength) {
+		reserve(1 + 2 * MAX_VARINT_BYTES);
+		group.put(REALLOC);
+		putVarint(address);
+		putVarint(newLength);
+		recorded();
+	}
+
+	void logDefrag() {
+		reserve(1);
+		group.put(DEFRAG);
+		recorded();
+	}
+
+	void logDefragState(int threshold, int nextDefrag) {
+		putDefragState(threshold, nextDefrag);
+		recorded();
+	}
+
+	private void putDefragState(int threshold, int nextDefrag) {
+		reserve(1 + 2 * MAX_VARINT_BYTES);
+		group.put(DEFRAG_STATE);
+		putVarint(threshold);
+		putVarint(nextDefrag);
+	}
+
+	// Counts a record of the present group, and commits the group once it is full. The memory
+	// space cannot throw IOException, so a failure to commit is thrown as UncheckedIOException.
+	private void recorded() {
+		groupRecords++;
+		if (groupRecords >= groupSize) {
+			try {
+				commit();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// Makes room for the given number of bytes in the present group
+	private void reserve(int bytes) {
+		if (group.remaining() < bytes) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * group.capacity(), group.position() + bytes));
+			group.flip();
+			larger.put(group);
+			group = larger;
+		}
+	}
+
+	private void putVarint(int value) {
+		while ((value & ~0x7F) != 0) {
+			group.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		group.put((byte) value);
+	}
+
+	// Frames the records of the present group, appends them to the given log, forces the log,
+	// and empties the group
+	private void writeGroup(FileChannel channel) throws IOException {
+		int length = group.position() - FRAME_BYTES;
+		crc.reset();
+		crc.update(group.array(), FRAME_BYTES, length);
+		group.putInt(0, length);
+		group.putInt(4, (int) crc.getValue());
+		group.flip();
+		while (group.hasRemaining()) {
+			channel.write(group);
+		}
+		// Appending changes the size of the file, so its metadata is forced as well
+		channel.force(true);
+		group.clear();
+		group.position(FRAME_BYTES);
+	}
+
+	///// Replay /////
+
+	// Performs the operations of the complete groups of the log, cuts off an incomplete group,
+	// and leaves the log positioned for appending. The log is read one group at a time, so
+	// replay holds no more than one group in memory, however long the log is.
+	private void replay() throws IOException {
+		long size = log.size();
+		if (size < HEADER_BYTES) {
+			// A new log, or one whose header was cut short by a crash
+			log.truncate(0);
+			writeHeader(log);
+			log.force(true);
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		readFully(header, 0);
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("Not a memory space journal: " + logPath(directory, generation));
+		}
+
+		long end = HEADER_BYTES;
+		long record = 0;
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_BYTES);
+		ByteBuffer records = ByteBuffer.allocate(1 << 12);
+		while (size - end >= FRAME_BYTES) {
+			frame.clear();
+			readFully(frame, end);
+			int length = frame.getInt();
+			int checksum = frame.getInt();
+			if (length < 0 || length > size - end - FRAME_BYTES) {
+				break;
+			}
+			if (records.capacity() < length) {
+				records = ByteBuffer.allocate(Math.max(2 * records.capacity(), length));
+			}
+			records.clear().limit(length);
+			readFully(records, end + FRAME_BYTES);
+			crc.reset();
+			crc.update(records.array(), 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			while (records.hasRemaining()) {
+				apply(records, record++);
+			}
+			end += FRAME_BYTES + length;
+		}
+		if (end < size) {
+			log.truncate(end);
+			log.force(true);
+		}
+		log.position(end);
+	}
+
+	// Reads the log into the given buffer, from the given position of the log, until the
+	// buffer is full, and flips the buffer
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (log.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Journal log ended while it was read");
+			}
+		}
+		buffer.flip();
+	}
+
+	// Performs the next operation of the given records again
+	private void apply(ByteBuffer records, long record) throws IOException {
+		try {
+			byte operation = records.get();
+			switch (operation) {
+				case MALLOC: {
+					int length = getVarint(records);
+					expect(getVarint(records) - 1, space.malloc(length), record);
+					break;
+				}
+				case MALLOC_ALIGNED: {
+					int length = getVarint(records);
+					int alignment = getVarint(records);
+					expect(getVarint(records) - 1, space.mallocAligned(length, alignment), record);
+					break;
+				}
+				case MALLOC_BATCH: {
+					int n = getVarint(records);
+					int[] lengths = new int[n];
+					int[] expected = new int[n];
+					for (int i = 0; i < n; i++) {
+						lengths[i] = getVarint(records);
+						expected[i] = getVarint(records) - 1;
+					}
+					int[] addresses = new int[n];
+					space.mallocBatch(lengths, addresses);
+					for (int i = 0; i < n; i++) {
+						expect(expected[i], addresses[i], record);
+					}
+					break;
+				}
+				case FREE:
+					space.free(getVarint(records) - 1);
+					break;
+				case FREE_BATCH: {
+					int[] addresses = new int[getVarint(records)];
+					for (int i = 0; i < addresses.length; i++) {
+						addresses[i] = getVarint(records) - 1;
+					}
+					space.freeBatch(addresses);
+					break;
+				}
+				case REALLOC: {
+					int address = getVarint(records);
+					expect(address, space.realloc(address, getVarint(records)), record);
+					break;
+				}
+				case DEFRAG:
+					space.defrag();
+					break;
+				case DEFRAG_STATE: {
+					int threshold = getVarint(records);
+					space.setDefragState(threshold, getVarint(records));
+					break;
+				}
+				default:
+					throw new IOException("Corrupt memory space journal: operation " + operation + " in record " + record);
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Corrupt memory space journal: record " + record + " cannot be replayed", e);
+		}
+	}
+
+	private static void expect(int expected, int actual, long record) throws IOException {
+		if (expected != actual) {
+			throw new IOException("Journal does not match its memory space: record " + record
+					+ " returned " + actual + " instead of " + expected);
+		}
+	}
+
+	private static int getVarint(ByteBuffer records) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = records.get();
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("Corrupt memory space journal: varint is too long");
+	}
+
+	///// Files /////
+
+	private static void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+		channel.position(HEADER_BYTES);
+	}
+
+	// Deletes the snapshots and logs of other generations, and unfinished snapshots
+	private void deleteOtherGenerations() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "{snapshot,journal}.*")) {
+			for (Path file : files) {
+				if (generationOf(file) != generation) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	// Forces the renaming of the snapshot to the storage device, where the platform allows it
+	private void syncDirectory() {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Some platforms cannot open a directory; the rename is then as durable as they make it
+		}
+	}
+
+	// Returns the generation in the name of a snapshot or a log, or -1 for an unfinished snapshot
+	private static long generationOf(Path file) {
+		String name = file.getFileName().toString();
+		try {
+			return Long.parseLong(name.substring(name.indexOf('.') + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static Path snapshotPath(Path directory, long generation) {
+		return directory.resolve("snapshot." + generation);
+	}
+
+	private static Path logPath(Path directory, long generation) {
+		return directory.resolve("journal." + generation);
+	}
+}
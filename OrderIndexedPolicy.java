@@ -0,0 +1,144 @@
+/**
+ * A placement policy that keeps the free blocks in a max-length segment tree, in the
+ * order of the free list, so that the first block which is large enough, at or after a
+ * given position of the free list, is found in O(log n) time.
+ * <p>
+ * Every node of the free list gets a slot of the tree, and the slots increase along the
+ * list. A node added at the end of the list takes the next unused slot, and a node added
+ * in the middle takes a slot between the slots of its neighbours. When there is no such
+ * slot, or no unused slot is left, the tree is laid out again from the list, with a free
+ * slot after every node; this is rare, so an update costs O(log n) amortized time.
+ */
+public abstract class OrderIndexedPolicy implements PlacementPolicy {
+
+	private static final int MIN_CAPACITY = 16;
+
+	// The free list that the tree follows
+	private LinkedList list;
+
+	// The number of slots, a power of two, and the first slot that was never used
+	private int capacity;
+	private int end;
+
+	// The node in every slot, or null for an empty slot
+	private Node[] nodes;
+
+	// The segment tree: max[1] is the root, max[capacity + slot] is the length of the
+	// block in the slot (0 if the slot is empty), and every other entry is the larger
+	// of its two children
+	private int[] max;
+
+	public void added(Node node) {
+		int slot;
+		if (node.next == null) {
+			if (end == capacity) {
+				layout();
+				return;
+			}
+			slot = end++;
+		} else {
+			int low = (node.prev == null) ? -1 : node.prev.slot;
+			int high = node.next.slot;
+			if (high - low < 2) {
+				layout();
+				return;
+			}
+			slot = (low + high) >>> 1;
+		}
+		node.slot = slot;
+		nodes[slot] = node;
+		update(slot, node.block.getLength());
+	}
+
+	public void removed(Node node) {
+		nodes[node.slot] = null;
+		update(node.slot, 0);
+		node.slot = -1;
+	}
+
+	public void resized(Node node, int oldBaseAddress, int oldLength) {
+		update(node.slot, node.block.getLength());
+	}
+
+	public void reset(LinkedList freeList) {
+		list = freeList;
+		layout();
+	}
+
+	/**
+	 * Returns the node of the first free block, at or after the given slot, whose length
+	 * is at least the given length, or null if there is none.
+	 */
+	protected Node first(int fromSlot, int length) {
+		int slot = (fromSlot < end && max[1] >= length) ? find(1, 0, capacity, fromSlot, length) : -1;
+		return (slot < 0) ? null : nodes[slot];
+	}
+
+	/**
+	 * Returns the node of the first free block, at or after the given slot, which holds a
+	 * block of the given length whose base address is a multiple of the given alignment,
+	 * or null if there is none. Blocks which are long enough but lose too many words to
+	 * the alignment are skipped.
+	 */
+	protected Node firstAligned(int fromSlot, int length, int alignment) {
+		Node node = first(fromSlot, length);
+		while (node != null && !PlacementPolicy.fitsAligned(node.block, length, alignment)) {
+			node = first(node.slot + 1, length);
+		}
+		return node;
+	}
+
+	// Returns the first slot at or after fromSlot in the subtree i, which covers the
+	// slots [low, high), whose length is at least the given length, or -1
+	private int find(int i, int low, int high, int fromSlot, int length) {
+		if (high <= fromSlot || max[i] < length) {
+			return -1;
+		}
+		if (i >= capacity) {
+			return low;
+		}
+		int middle = (low + high) >>> 1;
+		int slot = find(2 * i, low, middle, fromSlot, length);
+		return (slot >= 0) ? slot : find(2 * i + 1, middle, high, fromSlot, length);
+	}
+
+	// Sets the length of the given slot, and updates its ancestors
+	private void update(int slot, int length) {
+		int i = capacity + slot;
+		max[i] = length;
+		for (i >>>= 1; i >= 1; i >>>= 1) {
+			max[i] = Math.max(max[2 * i], max[2 * i + 1]);
+		}
+	}
+
+	// Lays the tree out again from the list, in every other slot, leaving room for
+	// both additions in the middle and at the end of the list
+	private void layout() {
+		int size = list.getSize();
+		int needed = MIN_CAPACITY;
+		while (needed < 4 * size) {
+			needed <<= 1;
+		}
+		// Reuse the arrays unless they are too small, or much too large, so that a
+		// steady stream of defrags creates no garbage
+		if (nodes == null || needed > nodes.length || 4 * needed < nodes.length) {
+			nodes = new Node[needed];
+			max = new int[2 * needed];
+		} else {
+			java.util.Arrays.fill(nodes, null);
+			java.util.Arrays.fill(max, 0);
+		}
+		capacity = nodes.length;
+		int slot = 0;
+		for (Node node = list.getFirst(); node != null; node = node.next) {
+			node.slot = slot;
+			nodes[slot] = node;
+			max[capacity + slot] = node.block.getLength();
+			slot += 2;
+		}
+		end = slot;
+		for (int i = capacity - 1; i >= 1; i--) {
+			max[i] = Math.max(max[2 * i], max[2 * i + 1]);
+		}
+	}
+}
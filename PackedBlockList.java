@@ -0,0 +1,183 @@
+/**
+ * Represents a list of memory blocks stored in parallel primitive arrays, instead of
+ * MemoryBlock and Node objects.
+ * <p>
+ * Every block occupies a slot: blocks[slot] packs its base address (high 32 bits) and
+ * its length (low 32 bits), and next[slot] and prev[slot] hold the slots of its
+ * neighbours in the list, or -1 at the ends. The slots of removed blocks are pushed
+ * on a stack, and reused by the next additions, so adding and removing blocks allocates
+ * no objects. Scanning the list reads consecutive array elements instead of chasing
+ * references to objects spread over the heap.
+ */
+public class PackedBlockList {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] blocks;   // (base address << 32) | length, by slot
+	private int[] next;      // the slot of the next block in the list, or -1
+	private int[] prev;      // the slot of the previous block in the list, or -1
+	private int[] freeSlots; // a stack of the unused slots below highSlot
+	private int freeTop;     // number of slots in the freeSlots stack
+	private int highSlot;    // slots from here on were never used
+
+	private int first = -1;  // the slot of the first block of this list, or -1
+	private int last = -1;   // the slot of the last block of this list, or -1
+	private int size;        // number of blocks in this list
+
+	// A buffer reused by sortByBaseAddress
+	private long[] sortBuffer = new long[0];
+
+	/**
+	 * Constructs a new, empty list.
+	 */
+	public PackedBlockList() {
+		blocks = new long[MIN_CAPACITY];
+		next = new int[MIN_CAPACITY];
+		prev = new int[MIN_CAPACITY];
+		freeSlots = new int[MIN_CAPACITY];
+	}
+
+	/**
+	 * Gets the number of blocks in this list
+	 * @return the size of the list.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the slot of the first block of this list
+	 * @return the slot of the first block, or -1 if the list is empty.
+	 */
+	public int first() {
+		return first;
+	}
+
+	/**
+	 * Gets the slot of the block that follows the given slot in this list
+	 * @return the slot of the next block, or -1 if the given slot is the last one.
+	 */
+	public int next(int slot) {
+		return next[slot];
+	}
+
+	/**
+	 * Gets the base address of the block in the given slot
+	 * @return the base address of the block.
+	 */
+	public int getBaseAddress(int slot) {
+		return (int) (blocks[slot] >>> 32);
+	}
+
+	/**
+	 * Gets the length of the block in the given slot
+	 * @return the length of the block, in words.
+	 */
+	public int getLength(int slot) {
+		return (int) blocks[slot];
+	}
+
+	/**
+	 * Sets the base address and the length of the block in the given slot.
+	 */
+	public void set(int slot, int baseAddress, int length) {
+		blocks[slot] = pack(baseAddress, length);
+	}
+
+	/**
+	 * Adds a block with the given base address and length to the end of this list.
+	 *
+	 * @return the slot of the new block
+	 */
+	public int addLast(int baseAddress, int length) {
+		int slot = newSlot();
+		blocks[slot] = pack(baseAddress, length);
+		next[slot] = -1;
+		prev[slot] = last;
+		if (last == -1) {
+			first = slot;
+		} else {
+			next[last] = slot;
+		}
+		last = slot;
+		size++;
+		return slot;
+	}
+
+	/**
+	 * Removes the block in the given slot from this list, in O(1).
+	 * The slot may be reused by a later addition.
+	 */
+	public void remove(int slot) {
+		if (prev[slot] == -1) {
+			first = next[slot];
+		} else {
+			next[prev[slot]] = next[slot];
+		}
+		if (next[slot] == -1) {
+			last = prev[slot];
+		} else {
+			prev[next[slot]] = prev[slot];
+		}
+		freeSlots[freeTop++] = slot;
+		size--;
+	}
+
+	/**
+	 * Sorts this list by the base addresses of its blocks. The blocks are also compacted
+	 * into slots 0 to size - 1, in list order, so later scans read the arrays sequentially.
+	 * Slots returned before the sort are no longer valid after it.
+	 */
+	public void sortByBaseAddress() {
+		if (sortBuffer.length < size) {
+			sortBuffer = new long[blocks.length];
+		}
+		int n = 0;
+		for (int slot = first; slot != -1; slot = next[slot]) {
+			sortBuffer[n++] = blocks[slot];
+		}
+		// Base addresses are not negative, so the packed values sort by base address
+		java.util.Arrays.sort(sortBuffer, 0, n);
+
+		for (int i = 0; i < n; i++) {
+			blocks[i] = sortBuffer[i];
+			next[i] = (i + 1 < n) ? i + 1 : -1;
+			prev[i] = i - 1;
+		}
+		first = (n == 0) ? -1 : 0;
+		last = n - 1;
+		highSlot = n;
+		freeTop = 0;
+	}
+
+	/**
+	 * A textual representation of this list, in the same format as LinkedList.
+	 */
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for (int slot = first; slot != -1; slot = next[slot]) {
+			result.append('(').append(getBaseAddress(slot)).append(" , ")
+					.append(getLength(slot)).append(") ");
+		}
+		return result.toString();
+	}
+
+	// Returns an unused slot, growing the arrays if every slot is used
+	private int newSlot() {
+		if (freeTop > 0) {
+			return freeSlots[--freeTop];
+		}
+		if (highSlot == blocks.length) {
+			int capacity = blocks.length * 2;
+			blocks = java.util.Arrays.copyOf(blocks, capacity);
+			next = java.util.Arrays.copyOf(next, capacity);
+			prev = java.util.Arrays.copyOf(prev, capacity);
+			freeSlots = java.util.Arrays.copyOf(freeSlots, capacity);
+		}
+		return highSlot++;
+	}
+
+	private static long pack(int baseAddress, int length) {
+		return ((long) baseAddress << 32) | (length & 0xFFFFFFFFL);
+	}
+}
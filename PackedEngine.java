@@ -0,0 +1,129 @@
+/**
+ * An allocation engine that works like the memory space's own lists (first-fit malloc,
+ * free to the end of the free list, and coalescing only on defrag), but keeps the free
+ * and allocated blocks in PackedBlockLists. Managing a block allocates no objects, and
+ * each block costs 16 bytes of arrays, instead of a MemoryBlock and a Node.
+ */
+public class PackedEngine implements MemoryEngine {
+
+	// The presently allocated blocks
+	private PackedBlockList allocatedList = new PackedBlockList();
+
+	// The slots of the allocatedList, by the base addresses of their blocks
+	private IntIntHashMap allocatedIndex = new IntIntHashMap();
+
+	// The presently free blocks
+	private PackedBlockList freeList = new PackedBlockList();
+
+	// Total size of the memory space
+	private int maxSize;
+
+	/**
+	 * Constructs a new engine that manages a memory space of a given maximal size.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 */
+	public PackedEngine(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("Memory size must not be negative");
+		}
+		this.maxSize = maxSize;
+		freeList.addLast(0, maxSize);
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Allocates from the first free block whose length is at least the given length,
+	 * like MemorySpace.malloc with the first-fit policy.
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		for (int slot = freeList.first(); slot != -1; slot = freeList.next(slot)) {
+			int freeLength = freeList.getLength(slot);
+			if (freeLength >= length) {
+				int baseAddress = freeList.getBaseAddress(slot);
+				if (freeLength > length) {
+					freeList.set(slot, baseAddress + length, freeLength - length);
+				} else {
+					freeList.remove(slot);
+				}
+				allocatedIndex.put(baseAddress, allocatedList.addLast(baseAddress, length));
+				return baseAddress;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Moves the block whose base address equals the given address to the end of the
+	 * free list. Addresses that are not allocated are ignored.
+	 */
+	public void free(int address) {
+		if (allocatedList.getSize() == 0) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		int slot = allocatedIndex.remove(address);
+		if (slot == -1) {
+			return;
+		}
+		freeList.addLast(address, allocatedList.getLength(slot));
+		allocatedList.remove(slot);
+	}
+
+	public int allocatedLength(int address) {
+		int slot = allocatedIndex.get(address);
+		return (slot == -1) ? -1 : allocatedList.getLength(slot);
+	}
+
+	/**
+	 * Sorts the free list by base address, and merges adjacent free blocks.
+	 */
+	public void defrag() {
+		if (freeList.getSize() <= 1) {
+			return;
+		}
+		freeList.sortByBaseAddress();
+		int previous = freeList.first();
+		int slot = freeList.next(previous);
+		while (slot != -1) {
+			int nextSlot = freeList.next(slot);
+			int previousBase = freeList.getBaseAddress(previous);
+			int previousLength = freeList.getLength(previous);
+			if (previousBase + previousLength == freeList.getBaseAddress(slot)) {
+				freeList.set(previous, previousBase, previousLength + freeList.getLength(slot));
+				freeList.remove(slot);
+			} else {
+				previous = slot;
+			}
+			slot = nextSlot;
+		}
+	}
+
+	/**
+	 * Returns the free blocks, in free list order.
+	 */
+	public LinkedList freeBlocks() {
+		return toList(freeList);
+	}
+
+	/**
+	 * Returns the allocated blocks, in allocation order.
+	 */
+	public LinkedList allocatedBlocks() {
+		return toList(allocatedList);
+	}
+
+	private static LinkedList toList(PackedBlockList blocks) {
+		LinkedList list = new LinkedList();
+		for (int slot = blocks.first(); slot != -1; slot = blocks.next(slot)) {
+			list.addLast(new MemoryBlock(blocks.getBaseAddress(slot), blocks.getLength(slot)));
+		}
+		return list;
+	}
+}
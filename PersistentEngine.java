@@ -0,0 +1,433 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An allocation engine whose state lives in a memory-mapped file, so that a memory space
+ * survives the restart of its process.
+ * <p>
+ * The file holds a header, a tag for every word of the memory space, a free index, and
+ * optionally the words themselves. The first word of every block is tagged with the
+ * block's length, positive for an allocated block and negative for a free block, and all
+ * the other words are tagged 0, so the tags are the allocated index: the length of the
+ * block at an address is read from its tag. The free index is a max-length segment tree
+ * over the addresses, whose leaves are the lengths of the free blocks that start there
+ * (read from the tags) and whose inner nodes are stored in the file. Like the memory
+ * space's own free list, malloc takes the first free block that is large enough (here,
+ * in address order), but it finds it by descending the tree, in O(log n) time; free does
+ * not coalesce, and defrag merges adjacent free blocks. Opening a file reads nothing but
+ * the header.
+ * <p>
+ * Every operation changes a few tags (and the count of allocated blocks) atomically,
+ * through a redo record in the header: the new values are written to the record, then the
+ * record is marked valid, then the new values are written in place, the tree nodes above
+ * the changed tags are computed again, and then the record is cleared. Store fences keep
+ * these steps in order, so after the process is killed at any point, the file holds
+ * either the state before the operation, or a valid record that opening the file applies
+ * again, together with its tree nodes. With sync turned on, every step is also forced to
+ * the storage device, so the file survives the loss of power as well, at a much higher
+ * cost.
+ */
+public class PersistentEngine implements MemoryEngine, Closeable {
+
+	private static final int MAGIC = 0x4D454D53; // "MEMS"
+	private static final int VERSION = 2;
+
+	// The byte offsets of the header fields
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int SIZE_OFFSET = 8;
+	private static final int FLAGS_OFFSET = 12;
+	private static final int ALLOCATED_COUNT_OFFSET = 16;
+	private static final int REDO_VALID_OFFSET = 20;
+	private static final int REDO_COUNT_OFFSET = 24;
+	private static final int REDO_ENTRIES_OFFSET = 28;
+
+	// The largest number of writes in one operation, each an (offset, value) pair
+	private static final int MAX_REDO_ENTRIES = 8;
+
+	// The size of the header, and the flag that marks a file holding the words
+	private static final int HEADER_BYTES = 128;
+	private static final int WITH_DATA = 1;
+
+	// The mapped file, and the channel it was mapped from
+	private final FileChannel channel;
+	private final MappedByteBuffer file;
+
+	// Total size of the memory space
+	private final int maxSize;
+
+	// The number of leaves of the free index, the smallest power of two not below maxSize
+	private final int capacity;
+
+	// The words of the memory space, or null if the file holds only the tags
+	private final ByteBuffer data;
+
+	// Whether every step of an operation is forced to the storage device
+	private boolean sync;
+
+	// The writes of the operation in progress
+	private final int[] redoOffsets = new int[MAX_REDO_ENTRIES];
+	private final int[] redoValues = new int[MAX_REDO_ENTRIES];
+	private int redoCount;
+
+	/**
+	 * Creates a new file for a memory space of a given maximal size, and an engine that
+	 * manages it. All the words are initially free.
+	 *
+	 * @param path
+	 *        the file to create, which must not exist
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 * @param withData
+	 *        true if the file holds the words of the memory space, in addition to the tags
+	 * @throws IOException
+	 *         if the file exists, or cannot be created
+	 */
+	public PersistentEngine(Path path, int maxSize, boolean withData) throws IOException {
+		if (!isSupported(maxSize)) {
+			throw new IllegalArgumentException("Memory size is not supported by a persistent engine");
+		}
+		channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.maxSize = maxSize;
+		capacity = capacityOf(maxSize);
+		file = map(channel, maxSize, withData);
+		data = withData ? dataView() : null;
+
+		// The header is written last, so a file cut short by a crash is not a valid file
+		file.putInt(tagOffset(0), -maxSize);
+		updateIndex(0);
+		file.putInt(SIZE_OFFSET, maxSize);
+		file.putInt(FLAGS_OFFSET, withData ? WITH_DATA : 0);
+		file.putInt(VERSION_OFFSET, VERSION);
+		VarHandle.storeStoreFence();
+		file.putInt(MAGIC_OFFSET, MAGIC);
+		file.force();
+	}
+
+	/**
+	 * Opens the file of an existing memory space, and creates an engine that manages it.
+	 * If the file was left in the middle of an operation, the operation is completed.
+	 *
+	 * @param path
+	 *        the file of the memory space
+	 * @throws IOException
+	 *         if the file cannot be opened, or is not the file of a memory space, or its
+	 *         length does not match the size of the memory space in its header
+	 */
+	public PersistentEngine(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(header, 0);
+		if (header.getInt(MAGIC_OFFSET) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+			channel.close();
+			throw new IOException("Not the file of a memory space: " + path);
+		}
+		maxSize = header.getInt(SIZE_OFFSET);
+		capacity = capacityOf(maxSize);
+		boolean withData = (header.getInt(FLAGS_OFFSET) & WITH_DATA) != 0;
+		// Mapping a file with a wrong size would silently extend it, or ignore its end
+		if (!isSupported(maxSize) || channel.size() != fileBytes(maxSize, withData)) {
+			channel.close();
+			throw new IOException("The size in the header does not match the file of a memory space: " + path);
+		}
+		file = map(channel, maxSize, withData);
+		data = withData ? dataView() : null;
+		if (file.getInt(REDO_VALID_OFFSET) != 0) {
+			redo();
+		}
+	}
+
+	/**
+	 * Opens the file of an existing memory space of a given maximal size, and creates an
+	 * engine that manages it. If the file was left in the middle of an operation, the
+	 * operation is completed.
+	 *
+	 * @param path
+	 *        the file of the memory space
+	 * @param maxSize
+	 *        the size of the memory space that the file must hold
+	 * @throws IOException
+	 *         if the file cannot be opened, or is not the file of a memory space of the
+	 *         given size
+	 */
+	public PersistentEngine(Path path, int maxSize) throws IOException {
+		this(path);
+		if (this.maxSize != maxSize) {
+			channel.close();
+			throw new IOException("The file holds a memory space of " + this.maxSize
+					+ " words, not " + maxSize + ": " + path);
+		}
+	}
+
+	/**
+	 * Turns forcing to the storage device on or off. With sync off (the default), the file
+	 * survives the crash of the process; with sync on, it also survives the loss of power.
+	 *
+	 * @param sync
+	 *        true to force every step of every operation to the storage device
+	 */
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * Returns the words of the memory space, WORD_BYTES bytes per word, in the file. A memory
+	 * space can use them through MemorySpace.attachBackingStore. The words are written to the
+	 * storage device by sync and close, or by the operating system at any time.
+	 *
+	 * @return the words of the memory space, or null if the file holds only the tags
+	 */
+	public ByteBuffer getData() {
+		return data;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Allocates from the first free block, in address order, whose length is at least
+	 * the given length. The block is found in the free index.
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		int address = firstFree(0, length);
+		if (address == -1) {
+			return -1;
+		}
+		int tag = tag(address);
+		if (-tag > length) {
+			stage(tagOffset(address + length), tag + length);
+		}
+		stage(tagOffset(address), length);
+		stage(ALLOCATED_COUNT_OFFSET, file.getInt(ALLOCATED_COUNT_OFFSET) + 1);
+		commit();
+		return address;
+	}
+
+	/**
+	 * Marks the block whose base address equals the given address as free.
+	 * Addresses that are not allocated are ignored.
+	 */
+	public void free(int address) {
+		if (file.getInt(ALLOCATED_COUNT_OFFSET) == 0) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		// Only the first word of an allocated block has a positive tag
+		if (address < 0 || address >= maxSize || tag(address) <= 0) {
+			return;
+		}
+		stage(tagOffset(address), -tag(address));
+		stage(ALLOCATED_COUNT_OFFSET, file.getInt(ALLOCATED_COUNT_OFFSET) - 1);
+		commit();
+	}
+
+	/**
+	 * Reads the length of the block allocated at the given address from its tag.
+	 */
+	public int allocatedLength(int address) {
+		// Only the first word of an allocated block has a positive tag
+		if (address < 0 || address >= maxSize || tag(address) <= 0) {
+			return -1;
+		}
+		return tag(address);
+	}
+
+	/**
+	 * Merges every run of adjacent free blocks into one block, one pair at a time.
+	 * The free blocks are found in the free index, so the allocated blocks are skipped.
+	 */
+	public void defrag() {
+		for (int address = firstFree(0, 1); address != -1; ) {
+			int next = address - tag(address);
+			while (next < maxSize && tag(next) < 0) {
+				stage(tagOffset(address), tag(address) + tag(next));
+				stage(tagOffset(next), 0);
+				commit();
+				next = address - tag(address);
+			}
+			address = firstFree(next, 1);
+		}
+	}
+
+	/**
+	 * Returns the free blocks, in address order. The blocks are found in the free index.
+	 */
+	public LinkedList freeBlocks() {
+		LinkedList list = new LinkedList();
+		for (int address = firstFree(0, 1); address != -1; address = firstFree(address - tag(address), 1)) {
+			list.addLast(new MemoryBlock(address, -tag(address)));
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the allocated blocks, in address order.
+	 */
+	public LinkedList allocatedBlocks() {
+		LinkedList list = new LinkedList();
+		for (int address = 0; address < maxSize; address += blockLength(address)) {
+			if (tag(address) > 0) {
+				list.addLast(new MemoryBlock(address, tag(address)));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Forces the tags and the words of the memory space to the storage device.
+	 */
+	public void sync() {
+		file.force();
+	}
+
+	/**
+	 * Forces the file to the storage device, and closes it. The engine must not be used
+	 * after it is closed.
+	 */
+	public void close() throws IOException {
+		file.force();
+		channel.close();
+	}
+
+	// Adds a write to the operation in progress
+	private void stage(int offset, int value) {
+		redoOffsets[redoCount] = offset;
+		redoValues[redoCount] = value;
+		redoCount++;
+	}
+
+	// Performs the writes of the operation in progress atomically, through the redo record
+	private void commit() {
+		for (int i = 0; i < redoCount; i++) {
+			file.putInt(REDO_ENTRIES_OFFSET + 8 * i, redoOffsets[i]);
+			file.putInt(REDO_ENTRIES_OFFSET + 8 * i + 4, redoValues[i]);
+		}
+		file.putInt(REDO_COUNT_OFFSET, redoCount);
+		step();
+		file.putInt(REDO_VALID_OFFSET, 1); // the operation takes effect here
+		step();
+		redo();
+		redoCount = 0;
+	}
+
+	// Writes the values of the valid redo record in place, computes the free index again
+	// above the tags it changed, and clears the record
+	private void redo() {
+		int count = file.getInt(REDO_COUNT_OFFSET);
+		for (int i = 0; i < count; i++) {
+			file.putInt(file.getInt(REDO_ENTRIES_OFFSET + 8 * i), file.getInt(REDO_ENTRIES_OFFSET + 8 * i + 4));
+		}
+		// All the tags are written first, since the nodes above one tag may also be above another
+		for (int i = 0; i < count; i++) {
+			int offset = file.getInt(REDO_ENTRIES_OFFSET + 8 * i);
+			if (offset >= tagOffset(0) && offset < tagOffset(maxSize)) {
+				updateIndex((offset - tagOffset(0)) / MemorySpace.WORD_BYTES);
+			}
+		}
+		step();
+		file.putInt(REDO_VALID_OFFSET, 0);
+		// The next operation writes its entries over this record, so it must not be valid then
+		step();
+	}
+
+	// Keeps the writes before it ahead of the writes after it, in memory and, with sync, on the device
+	private void step() {
+		VarHandle.storeStoreFence();
+		if (sync) {
+			file.force();
+		}
+	}
+
+	private int tag(int address) {
+		return file.getInt(tagOffset(address));
+	}
+
+	// Returns the first address, at or after the given address, where a free block of at
+	// least the given length starts, or -1 if there is none
+	private int firstFree(int fromAddress, int length) {
+		return (fromAddress < maxSize) ? find(1, 0, capacity, fromAddress, length) : -1;
+	}
+
+	// Returns the first address at or after fromAddress in the subtree i, which covers the
+	// addresses [low, high), where a free block of at least the given length starts, or -1
+	private int find(int i, int low, int high, int fromAddress, int length) {
+		if (high <= fromAddress || indexValue(i) < length) {
+			return -1;
+		}
+		if (i >= capacity) {
+			return low;
+		}
+		int middle = (low + high) >>> 1;
+		int address = find(2 * i, low, middle, fromAddress, length);
+		return (address >= 0) ? address : find(2 * i + 1, middle, high, fromAddress, length);
+	}
+
+	// Computes the nodes of the free index above the given address again, from their children
+	private void updateIndex(int address) {
+		for (int i = (capacity + address) >>> 1; i >= 1; i >>>= 1) {
+			file.putInt(indexOffset(i), Math.max(indexValue(2 * i), indexValue(2 * i + 1)));
+		}
+	}
+
+	// Returns the largest length of a free block that starts in the subtree i of the free index
+	private int indexValue(int i) {
+		if (i < capacity) {
+			return file.getInt(indexOffset(i));
+		}
+		int address = i - capacity;
+		return (address < maxSize) ? Math.max(0, -tag(address)) : 0;
+	}
+
+	private int blockLength(int address) {
+		int tag = tag(address);
+		if (tag == 0) {
+			throw new IllegalStateException("Corrupt memory space file: no block starts at " + address);
+		}
+		return Math.abs(tag);
+	}
+
+	private static int tagOffset(int address) {
+		return HEADER_BYTES + address * MemorySpace.WORD_BYTES;
+	}
+
+	// The inner nodes 1 to capacity - 1 of the free index follow the tags (node 0 is unused)
+	private int indexOffset(int i) {
+		return tagOffset(maxSize) + i * MemorySpace.WORD_BYTES;
+	}
+
+	private static int capacityOf(int maxSize) {
+		return (maxSize == 1) ? 1 : Integer.highestOneBit(maxSize - 1) << 1;
+	}
+
+	// Checks if the file of a memory space of the given size can be mapped
+	private static boolean isSupported(int maxSize) {
+		return maxSize > 0 && maxSize <= (Integer.MAX_VALUE - HEADER_BYTES) / (4 * MemorySpace.WORD_BYTES);
+	}
+
+	// Returns the length of the file of a memory space of the given size, in bytes
+	private static long fileBytes(int maxSize, boolean withData) {
+		long words = (long) maxSize + capacityOf(maxSize) + (withData ? maxSize : 0);
+		return HEADER_BYTES + words * MemorySpace.WORD_BYTES;
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, int maxSize, boolean withData) throws IOException {
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileBytes(maxSize, withData));
+		mapped.order(ByteOrder.LITTLE_ENDIAN);
+		return mapped;
+	}
+
+	private ByteBuffer dataView() {
+		return file.slice(indexOffset(capacity), maxSize * MemorySpace.WORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+	}
+}
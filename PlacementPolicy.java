@@ -0,0 +1,81 @@
+/**
+ * Represents the placement policy of a memory space: the rule that decides which
+ * free block malloc takes a requested block from.
+ * <p>
+ * The memory space tells the policy about every change to its free list, so that
+ * a policy can keep its own index of the free blocks, and select a block without
+ * scanning the free list.
+ */
+public interface PlacementPolicy {
+
+	/**
+	 * Selects a free block whose length is at least the given length.
+	 * 
+	 * @param freeList
+	 *        the free list of the memory space
+	 * @param length
+	 *        the requested length, in words
+	 * @return the node of the selected free block, or null if no free block is large enough
+	 */
+	Node select(LinkedList freeList, int length);
+
+	/**
+	 * Selects a free block that holds a block of the given length whose base address is a
+	 * multiple of the given alignment, following the same rule as select.
+	 * 
+	 * @param freeList
+	 *        the free list of the memory space
+	 * @param length
+	 *        the requested length, in words
+	 * @param alignment
+	 *        the requested alignment of the base address, a power of two
+	 * @return the node of the selected free block, or null if no free block is large enough
+	 */
+	Node selectAligned(LinkedList freeList, int length, int alignment);
+
+	/**
+	 * Called after the given node was added to the free list.
+	 * 
+	 * @param node
+	 *        the added node
+	 */
+	void added(Node node);
+
+	/**
+	 * Called before the given node is removed from the free list.
+	 * 
+	 * @param node
+	 *        the node that is removed
+	 */
+	void removed(Node node);
+
+	/**
+	 * Called after the block of the given node was changed.
+	 * 
+	 * @param node
+	 *        the node whose block was changed
+	 * @param oldBaseAddress
+	 *        the base address of the block before the change
+	 * @param oldLength
+	 *        the length of the block before the change
+	 */
+	void resized(Node node, int oldBaseAddress, int oldLength);
+
+	/**
+	 * Called after the free list was rebuilt (for example, by defrag). The policy
+	 * has to forget the nodes it knew, and index the nodes of the given list.
+	 * 
+	 * @param freeList
+	 *        the new free list
+	 */
+	void reset(LinkedList freeList);
+
+	/**
+	 * Checks if the given free block holds a block of the given length whose base address
+	 * is a multiple of the given alignment (a power of two).
+	 */
+	static boolean fitsAligned(MemoryBlock block, int length, int alignment) {
+		long alignedBase = ((long) block.getBaseAddress() + alignment - 1) & -alignment;
+		return alignedBase + length <= (long) block.getBaseAddress() + block.getLength();
+	}
+}
@@ -0,0 +1,47 @@
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A placement policy that keeps the free blocks in a balanced search tree ordered by
+ * length (and by base address, among blocks of the same length), so that the smallest
+ * or the largest suitable block is found in O(log n) time.
+ */
+public abstract class SizeIndexedPolicy implements PlacementPolicy {
+
+	// The free list nodes, by the key (length, base address) of their blocks
+	protected TreeMap<Long, Node> bySize = new TreeMap<Long, Node>();
+
+	public void added(Node node) {
+		bySize.put(key(node.block.getBaseAddress(), node.block.getLength()), node);
+	}
+
+	public void removed(Node node) {
+		bySize.remove(key(node.block.getBaseAddress(), node.block.getLength()));
+	}
+
+	public void resized(Node node, int oldBaseAddress, int oldLength) {
+		bySize.remove(key(oldBaseAddress, oldLength));
+		added(node);
+	}
+
+	public void reset(LinkedList freeList) {
+		bySize.clear();
+		for (Node current = freeList.getFirst(); current != null; current = current.next) {
+			added(current);
+		}
+	}
+
+	/**
+	 * Returns the key of a block in the tree. Blocks are ordered by length, then by base address.
+	 */
+	protected static long key(int baseAddress, int length) {
+		return ((long) length << 32) | (baseAddress & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the node of the given tree entry, or null if there is no entry.
+	 */
+	protected static Node nodeOf(Map.Entry<Long, Node> entry) {
+		return (entry == null) ? null : entry.getValue();
+	}
+}
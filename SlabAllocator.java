@@ -0,0 +1,195 @@
+/**
+ * A sub-allocator for small blocks, layered in front of a memory space.
+ * <p>
+ * Small requests (up to MAX_SMALL_SIZE words) are rounded up to a power-of-two size
+ * class. Each size class carves slabs out of the memory space: a slab is a single block
+ * of the memory space that is divided into SLOTS slots of the class size, and a bitmap
+ * records which slots are free. A small malloc takes a free slot from a slab of its class,
+ * so it neither scans the free list nor creates list nodes or memory blocks, and the
+ * memory space only sees one allocated block per slab. Larger requests are passed to
+ * the memory space unchanged.
+ */
+public class SlabAllocator {
+
+	// The largest request that is served from a slab, in words
+	public static final int MAX_SMALL_SIZE = 64;
+
+	// The number of slots in a slab, one per bit of the slab's bitmap
+	private static final int SLOTS = 64;
+
+	// The number of size classes: 1, 2, 4, ..., MAX_SMALL_SIZE words
+	private static final int CLASS_COUNT = 32 - Integer.numberOfLeadingZeros(MAX_SMALL_SIZE);
+
+	// The memory space from which slabs and large blocks are allocated
+	private MemorySpace space;
+
+	// For every size class, a list of its slabs that have at least one free slot
+	private Slab[] partialSlabs = new Slab[CLASS_COUNT];
+
+	// The slabs that own the presently allocated small blocks, by block address
+	private IntHashMap<Slab> smallBlocks = new IntHashMap<Slab>();
+
+	// The slabs presently allocated from the memory space, by base address
+	private IntHashMap<Slab> slabs = new IntHashMap<Slab>();
+
+	// The number of slabs presently allocated from the memory space
+	private int slabCount;
+
+	/**
+	 * Constructs a new slab allocator in front of the given memory space.
+	 *
+	 * @param space
+	 *        the memory space from which slabs and large blocks are allocated
+	 */
+	public SlabAllocator(MemorySpace space) {
+		if (space == null) {
+			throw new NullPointerException("MemorySpace cannot be null");
+		}
+		this.space = space;
+	}
+
+	/**
+	 * Gets the memory space behind this allocator
+	 * @return the memory space.
+	 */
+	public MemorySpace getSpace() {
+		return space;
+	}
+
+	/**
+	 * Gets the number of slabs presently allocated from the memory space
+	 * @return the number of slabs.
+	 */
+	public int getSlabCount() {
+		return slabCount;
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words). Returns the
+	 * base address of the allocated block, or -1 if unable to allocate.
+	 * Small blocks are taken from a slab of their size class; if a new slab is
+	 * needed and the memory space has no room for it, the block is allocated
+	 * directly from the memory space.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		if (length > MAX_SMALL_SIZE) {
+			return space.malloc(length);
+		}
+
+		int sizeClass = (length == 1) ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+		Slab slab = partialSlabs[sizeClass];
+		if (slab == null) {
+			int base = space.malloc(SLOTS << sizeClass);
+			if (base == -1) {
+				return space.malloc(length);
+			}
+			slab = new Slab(base, sizeClass);
+			slabs.put(base, slab);
+			slabCount++;
+			pushPartial(slab);
+		}
+
+		int slot = Long.numberOfTrailingZeros(slab.freeSlots);
+		slab.freeSlots &= ~(1L << slot);
+		if (slab.freeSlots == 0) {
+			removePartial(slab);
+		}
+		int address = slab.base + (slot << sizeClass);
+		smallBlocks.put(address, slab);
+		return address;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address.
+	 * A slab whose slots are all free is returned to the memory space, unless
+	 * it is the only slab of its size class with free slots. Addresses that are
+	 * not allocated, including the addresses of free slots, are ignored.
+	 *
+	 * @param address
+	 *        the base address of the block to free
+	 */
+	public void free(int address) {
+		Slab slab = smallBlocks.remove(address);
+		if (slab == null) {
+			// The first slot of a slab has the slab's address, which must not be
+			// freed in the memory space while the slab is in use
+			if (!slabs.containsKey(address)) {
+				space.free(address);
+			}
+			return;
+		}
+
+		boolean wasFull = (slab.freeSlots == 0);
+		slab.freeSlots |= 1L << ((address - slab.base) >>> slab.sizeClass);
+		if (wasFull) {
+			pushPartial(slab);
+		}
+		if (slab.freeSlots == -1L && (slab.prev != null || slab.next != null)) {
+			removePartial(slab);
+			slabs.remove(slab.base);
+			space.free(slab.base);
+			slabCount--;
+		}
+	}
+
+	/**
+	 * Performs defragmentation of the memory space behind this allocator.
+	 */
+	public void defrag() {
+		space.defrag();
+	}
+
+	/**
+	 * A textual representation of the memory space behind this allocator.
+	 * Every slab appears as a single allocated block.
+	 */
+	public String toString() {
+		return space.toString();
+	}
+
+	private void pushPartial(Slab slab) {
+		slab.prev = null;
+		slab.next = partialSlabs[slab.sizeClass];
+		if (slab.next != null) {
+			slab.next.prev = slab;
+		}
+		partialSlabs[slab.sizeClass] = slab;
+	}
+
+	private void removePartial(Slab slab) {
+		if (slab.prev != null) {
+			slab.prev.next = slab.next;
+		} else {
+			partialSlabs[slab.sizeClass] = slab.next;
+		}
+		if (slab.next != null) {
+			slab.next.prev = slab.prev;
+		}
+		slab.prev = null;
+		slab.next = null;
+	}
+
+	/**
+	 * A block of the memory space, divided into SLOTS slots of one size class.
+	 */
+	private static class Slab {
+		int base;          // the base address of the slab in the memory space
+		int sizeClass;     // the slots are 2^sizeClass words long
+		long freeSlots;    // bit i is set if slot i is free
+		Slab prev;         // neighbours in the list of slabs with free slots
+		Slab next;
+
+		Slab(int base, int sizeClass) {
+			this.base = base;
+			this.sizeClass = sizeClass;
+			this.freeSlots = -1L;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * The binary format of memory space snapshots, written by MemorySpace.snapshot and read by
+ * MemorySpace.restore.
+ * <p>
+ * A snapshot starts with MAGIC and VERSION (4 bytes each), followed by the memory size, then
+ * the free list and the allocated list, each as its number of blocks followed by its blocks
+ * in list order, and ends with the CRC-32 of all the bytes before it (4 bytes). Every block
+ * is written as the difference between its base address and the base address of the block
+ * before it in the same list (zigzag-encoded, since it may be negative), and its length.
+ * All the numbers except the fixed 4-byte fields are varints: 7 bits per byte, low bits
+ * first, with the high bit set on every byte but the last. Lists kept in address order, as
+ * after a defrag, thus take about two bytes per block.
+ */
+class SnapshotFormat {
+
+	static final int MAGIC = 0x4D534E50; // "MSNP"
+	static final int VERSION = 1;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Writes a snapshot to an output stream, through a buffer.
+	 */
+	static final class Writer {
+		private final OutputStream out;
+		private final CRC32 crc = new CRC32();
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int position;
+
+		Writer(OutputStream out) {
+			this.out = out;
+		}
+
+		void writeFixed(int value) throws IOException {
+			ensure(4);
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				buffer[position++] = (byte) (value >>> shift);
+			}
+		}
+
+		void writeVarint(long value) throws IOException {
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[position++] = (byte) value;
+		}
+
+		void writeSignedVarint(long value) throws IOException {
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		/**
+		 * Writes the checksum of everything written so far, and flushes the stream.
+		 */
+		void finish() throws IOException {
+			drain();
+			writeFixed((int) crc.getValue());
+			out.write(buffer, 0, position);
+			position = 0;
+			out.flush();
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (position + bytes > buffer.length) {
+				drain();
+			}
+		}
+
+		private void drain() throws IOException {
+			crc.update(buffer, 0, position);
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	/**
+	 * Reads a snapshot from an input stream, through a buffer.
+	 */
+	static final class Reader {
+		private final InputStream in;
+		private final CRC32 crc = new CRC32();
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int position;
+		private int limit;
+		private int checked; // the bytes of the buffer before this index are in the checksum
+
+		Reader(InputStream in) {
+			this.in = in;
+		}
+
+		int readFixed() throws IOException {
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				value = (value << 8) | (readByte() & 0xFF);
+			}
+			return value;
+		}
+
+		long readVarint() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw new IOException("Corrupt memory space snapshot: varint is too long");
+		}
+
+		long readSignedVarint() throws IOException {
+			long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/**
+		 * Reads the checksum, and checks it against the checksum of everything read before it.
+		 */
+		void verify() throws IOException {
+			crc.update(buffer, checked, position - checked);
+			checked = position;
+			long expected = crc.getValue();
+			if ((readFixed() & 0xFFFFFFFFL) != expected) {
+				throw new IOException("Corrupt memory space snapshot: checksum mismatch");
+			}
+		}
+
+		private byte readByte() throws IOException {
+			if (position == limit) {
+				crc.update(buffer, checked, limit - checked);
+				limit = in.read(buffer, 0, buffer.length);
+				position = 0;
+				checked = 0;
+				if (limit <= 0) {
+					limit = 0;
+					throw new EOFException("Memory space snapshot is truncated");
+				}
+			}
+			return buffer[position++];
+		}
+	}
+}
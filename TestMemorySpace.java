@@ -1,6 +1,11 @@
 public class TestMemorySpace {
 
     public static void main(String[] args) {
+        // Run by testPersistentEngine in a child process, which it then kills
+        if (args.length == 2 && args[0].equals("churn")) {
+            churnPersistentEngine(java.nio.file.Paths.get(args[1]));
+            return;
+        }
         testAll();
     }
 
@@ -12,6 +17,28 @@ public class TestMemorySpace {
         testFree();
         testDefrag();
         testComplexScenario();
+        testTlsfEngine();
+        testAddressOrderedEngine();
+        testBuddyEngine();
+        testSlabAllocator();
+        testPlacementPolicies();
+        testDefragOnFailure();
+        testListSort();
+        testListIterator();
+        testPackedEngine();
+        testSteadyStateAllocatesNothing();
+        testConcurrentMemorySpace();
+        testLockFreeEngine();
+        testThreadCacheAllocator();
+        testBatches();
+        testRealloc();
+        testMallocAligned();
+        testBackingStore();
+        testPersistentEngine();
+        testSnapshot();
+        testOperationJournal();
+        testTraceReplay();
+        testWorkloadGenerator();
 
         System.out.println("All tests completed successfully!");
     }
@@ -98,12 +125,1065 @@ public class TestMemorySpace {
         assertString(expected, memory.toString(), "Complex scenario state");
     }
 
-    private static void assertEqual(int expected, int actual, String message) {
+    private static void testTlsfEngine() {
+        MemorySpace memory = new MemorySpace(new TlsfEngine(100));
+        assertString("(0 , 100)\n", memory.toString(), "TLSF initialization");
+
+        int addr1 = memory.malloc(20);
+        int addr2 = memory.malloc(30);
+        int addr3 = memory.malloc(40);
+        assertEqual(-1, memory.malloc(20), "TLSF allocation failure");
+        String expected = "(90 , 10)\n(0 , 20) (20 , 30) (50 , 40)\n";
+        assertString(expected, memory.toString(), "TLSF multiple allocations state");
+
+        // Freed blocks are merged with their free neighbours immediately
+        memory.free(addr1);
+        memory.free(addr3);
+        assertString("(0 , 20) (50 , 50)\n(20 , 30)\n", memory.toString(), "TLSF free state");
+        memory.free(addr2);
+        assertString("(0 , 100)\n", memory.toString(), "TLSF coalescing");
+
+        // An exact fit is found even when it is the only block of its size class
+        memory = new MemorySpace(new TlsfEngine(100));
+        memory.malloc(40);
+        assertEqual(40, memory.malloc(60), "TLSF exact fit");
+    }
+
+    private static void testAddressOrderedEngine() {
+        MemorySpace memory = new MemorySpace(new AddressOrderedEngine(100));
+        memory.malloc(20);
+        int addr2 = memory.malloc(20);
+        int addr3 = memory.malloc(20);
+
+        memory.free(0);
+        memory.free(addr3);
+        assertString("(0 , 20) (40 , 60)\n(20 , 20)\n", memory.toString(), "Address-ordered free state");
+
+        // Freeing the middle block merges it with both neighbours, without a defrag
+        memory.free(addr2);
+        assertString("(0 , 100)\n", memory.toString(), "Address-ordered coalescing");
+
+        // malloc takes the lowest free address that fits
+        memory = new MemorySpace(new AddressOrderedEngine(100));
+        int addr = memory.malloc(20);
+        memory.malloc(20);
+        memory.free(addr);
+        assertEqual(0, memory.malloc(10), "Address-ordered first fit");
+    }
+
+    private static void testBuddyEngine() {
+        MemorySpace memory = new MemorySpace(new BuddyEngine(128));
+        int addr1 = memory.malloc(32);
+        int addr2 = memory.malloc(20); // rounded up to a block of 32 words
+        int addr3 = memory.malloc(64);
+        assertEqual(0, addr1, "Buddy first allocation");
+        assertEqual(32, addr2, "Buddy second allocation");
+        assertEqual(64, addr3, "Buddy third allocation");
+        assertEqual(-1, memory.malloc(1), "Buddy allocation failure");
+
+        // Buddies are merged as soon as both are free
+        memory.free(addr1);
+        memory.free(addr3);
+        assertString("(0 , 32) (64 , 64)\n(32 , 20)\n", memory.toString(), "Buddy free state");
+        memory.free(addr2);
+        assertString("(0 , 128)\n", memory.toString(), "Buddy merging");
+
+        // A size which is not a power of two starts as several free blocks
+        memory = new MemorySpace(new BuddyEngine(100));
+        assertString("(0 , 64) (64 , 32) (96 , 4)\n", memory.toString(), "Buddy initialization");
+    }
+
+    private static void testSlabAllocator() {
+        SlabAllocator slabs = new SlabAllocator(new MemorySpace(1000));
+        int addr1 = slabs.malloc(3); // a slab of 64 slots of 4 words
+        int addr2 = slabs.malloc(4);
+        int addr3 = slabs.malloc(100);
+        assertEqual(0, addr1, "Slab first slot");
+        assertEqual(4, addr2, "Slab second slot");
+        assertEqual(256, addr3, "Large block after the slab");
+        assertEqual(1, slabs.getSlabCount(), "Slab count");
+        assertExactString("(356 , 644) \n(0 , 256) (256 , 100) ", slabs.toString(), "Slab state");
+
+        // A freed slot is reused by the next small malloc of its class
+        slabs.free(addr1);
+        assertEqual(0, slabs.malloc(4), "Slab slot reuse");
+
+        // A second free of the first slot is ignored, and does not free the slab
+        slabs.free(0);
+        slabs.free(0);
+        assertExactString("(356 , 644) \n(0 , 256) (256 , 100) ", slabs.toString(), "Slab double free");
+        assertEqual(1, slabs.getSlabCount(), "Slab count after double free");
+        assertEqual(0, slabs.malloc(4), "Slab slot after double free");
+        assertEqual(8, slabs.malloc(4), "Slab next slot after double free");
+
+        // When no slab fits in the memory space, small blocks come from the memory space
+        slabs = new SlabAllocator(new MemorySpace(100));
+        assertEqual(0, slabs.malloc(10), "Slab fallback");
+        assertEqual(0, slabs.getSlabCount(), "Slab fallback count");
+    }
+
+    private static void testPlacementPolicies() {
+        // Each policy starts from the free blocks (0 , 30) (40 , 10) (60 , 40)
+        assertEqual(0, placeAfterHoles(new FirstFitPolicy(), 10), "First fit");
+        assertEqual(40, placeAfterHoles(new BestFitPolicy(), 10), "Best fit");
+        assertEqual(60, placeAfterHoles(new WorstFitPolicy(), 10), "Worst fit");
+        assertEqual(-1, placeAfterHoles(new WorstFitPolicy(), 50), "Worst fit failure");
+
+        // Next fit continues from the block it allocated from last, and skips the earlier
+        // blocks of the free list that first fit takes
+        assertEqual(70, placeAfterRover(new FirstFitPolicy()), "First fit before the rover");
+        assertEqual(60, placeAfterRover(new NextFitPolicy()), "Next fit");
+    }
+
+    // Leaves the free blocks (70 , 30) (0 , 10) (60 , 10), in this order, after a malloc
+    // from (20 , 50), and allocates a block that fits in each of them
+    private static int placeAfterRover(PlacementPolicy policy) {
+        MemorySpace memory = new MemorySpace(100, policy);
+        int addr1 = memory.malloc(10);
+        memory.malloc(10);
+        int addr3 = memory.malloc(50);
+        memory.free(addr1);
+        memory.free(addr3);
+        memory.malloc(40);
+        return memory.malloc(10);
+    }
+
+    // Frees holes at (0 , 30) and (40 , 10) in a full memory space, and allocates a block
+    private static int placeAfterHoles(PlacementPolicy policy, int length) {
+        MemorySpace memory = new MemorySpace(100, policy);
+        int addr1 = memory.malloc(30);
+        memory.malloc(10);
+        int addr3 = memory.malloc(10);
+        memory.malloc(10);
+        memory.free(addr1);
+        memory.free(addr3);
+        memory.free(memory.malloc(40));
+        return memory.malloc(length);
+    }
+
+    private static void testDefragOnFailure() {
+        MemorySpace memory = new MemorySpace(100);
+        int addr1 = memory.malloc(50);
+        int addr2 = memory.malloc(50);
+        memory.free(addr2);
+        memory.free(addr1);
+
+        // No single free block is large enough, so malloc coalesces and retries
+        assertEqual(0, memory.malloc(80), "Allocation after defrag");
+        assertEqual(1, memory.getRetryDefragCount(), "Retry defrag count");
+        assertEqual(1, memory.getRetrySuccessCount(), "Retry success count");
+
+        // No defrag is tried when the free words cannot satisfy the request
+        assertEqual(-1, memory.malloc(30), "Allocation failure without defrag");
+        assertEqual(1, memory.getRetryDefragCount(), "Retry defrag count after failure");
+
+        // Proactive defrag runs once the free list passes the threshold
+        memory = new MemorySpace(100);
+        memory.setDefragThreshold(2);
+        int[] addresses = new int[5];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = memory.malloc(20);
+        }
+        memory.free(addresses[1]);
+        memory.free(addresses[2]);
+        assertEqual(0, memory.getProactiveDefragCount(), "No proactive defrag below threshold");
+        memory.free(addresses[3]);
+        assertEqual(1, memory.getProactiveDefragCount(), "Proactive defrag count");
+        assertString("(20 , 60)\n(0 , 20) (80 , 20)\n", memory.toString(), "Proactive defrag state");
+    }
+
+    private static void testListSort() {
+        LinkedList list = new LinkedList();
+        int[][] blocks = { {50, 5}, {10, 20}, {90, 5}, {0, 10}, {30, 20}, {70, 5}, {60, 10} };
+        for (int[] block : blocks) {
+            list.addLast(new MemoryBlock(block[0], block[1]));
+        }
+
+        list.sortByBaseAddress();
+        assertString("(0 , 10) (10 , 20) (30 , 20) (50 , 5) (60 , 10) (70 , 5) (90 , 5)",
+                list.toString(), "Sort by base address");
+        assertEqual(90, list.getLast().block.getBaseAddress(), "Last node after sort");
+
+        // Sorting by length keeps blocks of the same length in their previous (address) order
+        list.sort(MemoryBlock.BY_LENGTH);
+        String expected = "(50 , 5) (70 , 5) (90 , 5) (0 , 10) (60 , 10) (10 , 20) (30 , 20) ";
+        if (!list.toString().equals(expected)) {
+            throw new AssertionError("Stable sort by length: Expected " + expected + " but got " + list);
+        }
+        assertEqual(30, list.getLast().block.getBaseAddress(), "Last node after stable sort");
+    }
+
+    private static void testListIterator() {
+        LinkedList list = new LinkedList();
+        for (int i = 0; i < 4; i++) {
+            list.addLast(new MemoryBlock(i * 10, 10));
+        }
+
+        // Remove (10 , 10), replace (20 , 10), and add a block before (30 , 10)
+        ListIterator iterator = list.iterator();
+        iterator.next();
+        iterator.next();
+        iterator.remove();
+        iterator.next();
+        iterator.set(new MemoryBlock(20, 5));
+        iterator.add(new MemoryBlock(25, 5));
+        assertEqual(30, iterator.next().getBaseAddress(), "Iterator after add");
+        assertString("(0 , 10) (20 , 5) (25 , 5) (30 , 10)", list.toString(), "Iterator changes");
+        assertEqual(4, list.getSize(), "Size after iterator changes");
+        assertEqual(30, list.getLast().block.getBaseAddress(), "Last node after iterator changes");
+
+        // Changing the list other than through the iterator is detected
+        iterator = list.iterator();
+        iterator.next();
+        list.addFirst(new MemoryBlock(100, 1));
+        try {
+            iterator.next();
+            throw new AssertionError("Concurrent modification: Expected an exception");
+        } catch (java.util.ConcurrentModificationException e) {
+            // expected
+        }
+    }
+
+    private static void testPackedEngine() {
+        // The packed engine behaves exactly like the object lists, on the LinkedListTest workload
+        MemorySpace expected = new MemorySpace(1000);
+        MemorySpace actual = new MemorySpace(new PackedEngine(1000));
+        int[] addresses = new int[20];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = expected.malloc((int) Math.pow(i + 2, 5) % 123);
+            assertEqual(addresses[i], actual.malloc((int) Math.pow(i + 2, 5) % 123), "Packed malloc");
+        }
+        assertSame(expected, actual, "Packed state after malloc");
+        for (int i = 0; i < addresses.length; i += 2) {
+            expected.free(addresses[i]);
+            actual.free(addresses[i]);
+        }
+        assertSame(expected, actual, "Packed state after free");
+        expected.free(addresses[1]);
+        actual.free(addresses[1]);
+        expected.free(addresses[3]);
+        actual.free(addresses[3]);
+        expected.defrag();
+        actual.defrag();
+        assertSame(expected, actual, "Packed state after defrag");
+        assertEqual(expected.malloc(300), actual.malloc(300), "Packed malloc after defrag");
+        assertSame(expected, actual, "Packed state after defrag and malloc");
+    }
+
+    // Checks that two memory spaces have the same lists, in the same order
+    private static void assertSame(MemorySpace expected, MemorySpace actual, String message) {
+        if (!expected.toString().equals(actual.toString())) {
+            throw new AssertionError(message + ":\nExpected: " + expected + "\nActual: " + actual);
+        }
+    }
+
+    private static void testSteadyStateAllocatesNothing() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        MemorySpace memory = new MemorySpace(1000);
+        for (int i = 0; i < 10; i++) {
+            memory.malloc(100);
+        }
+
+        // Warm up, so that the pools hold enough nodes and blocks, and the code is compiled
+        runFreeDefragMallocCycles(memory, 20000);
+
+        // A one-off allocation by the JVM itself (such as a late compilation) may land in one
+        // measurement, but an allocation by the cycles would show up in every measurement
+        long allocated = Long.MAX_VALUE;
+        for (int i = 0; i < 5 && allocated != 0; i++) {
+            long start = threads.getCurrentThreadAllocatedBytes();
+            runFreeDefragMallocCycles(memory, 10000);
+            allocated = Math.min(allocated, threads.getCurrentThreadAllocatedBytes() - start);
+        }
+
+        assertEqual(0, allocated, "Bytes allocated by steady-state malloc/free/defrag");
+    }
+
+    // Frees two adjacent blocks, merges them, and allocates them again
+    private static void runFreeDefragMallocCycles(MemorySpace memory, int cycles) {
+        for (int i = 0; i < cycles; i++) {
+            memory.free(0);
+            memory.free(100);
+            memory.defrag();
+            memory.malloc(100);
+            memory.malloc(100);
+        }
+    }
+
+    private static void testConcurrentMemorySpace() {
+        // Two stripes of 50 words: a thread that fills one stripe spills to the other
+        ConcurrentMemorySpace memory = new ConcurrentMemorySpace(100, 2);
+        int addr1 = memory.malloc(50);
+        int addr2 = memory.malloc(50);
+        assertEqual(50, addr1 + addr2, "Concurrent spill to the other stripe");
+        assertEqual(-1, memory.malloc(1), "Concurrent allocation failure");
+        assertEqual(-1, memory.malloc(60), "Concurrent block longer than a stripe");
+
+        // A free goes to the stripe that owns the address
+        memory.free(50);
+        assertEqual(50, memory.malloc(50), "Concurrent free to the owning stripe");
+
+        // A double free is ignored, whether or not its stripe has other allocated blocks
+        memory = new ConcurrentMemorySpace(100, 2);
+        memory.malloc(10);
+        memory.malloc(10);
+        memory.free(0);
+        memory.free(0);
+        memory.free(10);
+        memory.free(10);
+        memory.defrag();
+        assertEqual(50, memory.malloc(50) + memory.malloc(50), "Concurrent stripes after double frees");
+
+        // Threads that churn on a shared space are never given overlapping blocks
+        ConcurrentMemorySpace shared = new ConcurrentMemorySpace(4096, 4);
+        assertNoOverlaps(shared::malloc, shared::free, null, 4096, "Overlapping concurrent blocks");
+    }
+
+    private static void testBatches() {
+        // The longest requests are served first; the last one does not fit
+        MemorySpace memory = new MemorySpace(100);
+        int[] addresses = new int[4];
+        assertEqual(3, memory.mallocBatch(new int[] { 10, 30, 20, 50 }, addresses), "Batch allocated count");
+        assertString("-1 50 80 0", addresses[0] + " " + addresses[1] + " " + addresses[2] + " " + addresses[3],
+                "Batch addresses");
+
+        // In one pass over the free list, every free block serves each request that still fits
+        memory = new MemorySpace(100);
+        for (int i = 0; i < 10; i++) {
+            memory.malloc(10);
+        }
+        memory.freeBatch(new int[] { 20, 50, 60, 999 });
+        assertString("(20 , 10) (50 , 10) (60 , 10)\n(0 , 10) (10 , 10) (30 , 10) (40 , 10) (70 , 10) (80 , 10) (90 , 10)\n",
+                memory.toString(), "Batch free");
+        assertEqual(4, memory.mallocBatch(new int[] { 5, 10, 5, 10 }, addresses), "Batch single pass count");
+        assertString("60 20 65 50", addresses[0] + " " + addresses[1] + " " + addresses[2] + " " + addresses[3],
+                "Batch single pass addresses");
+
+        // Failed requests are retried after a single defrag
+        memory = new MemorySpace(100);
+        int[] blocks = new int[5];
+        memory.mallocBatch(new int[] { 20, 20, 20, 20, 20 }, blocks);
+        memory.freeBatch(new int[] { blocks[3], blocks[1], blocks[2] });
+        assertEqual(2, memory.mallocBatch(new int[] { 40, 5 }, addresses), "Batch after defrag count");
+        assertEqual(1, memory.getRetryDefragCount(), "Batch retry defrag count");
+        assertEqual(1, memory.getRetrySuccessCount(), "Batch retry success count");
+
+        // Proactive defrag is checked once per batch of frees
+        memory = new MemorySpace(100);
+        memory.setDefragThreshold(1);
+        memory.mallocBatch(new int[] { 20, 20, 20, 20, 20 }, blocks);
+        memory.freeBatch(new int[] { blocks[1], blocks[2], blocks[3] });
+        assertEqual(1, memory.getProactiveDefragCount(), "Batch proactive defrag count");
+        assertString("(20 , 60)\n(0 , 20) (80 , 20)\n", memory.toString(), "Batch proactive defrag state");
+
+        // Engines serve the requests one by one
+        memory = new MemorySpace(new TlsfEngine(100));
+        assertEqual(2, memory.mallocBatch(new int[] { 40, 40, 40 }, addresses), "Batch with an engine");
+        assertEqual(-1, addresses[2], "Batch failure with an engine");
+
+        // An invalid length leaves the addresses array as it was
+        memory = new MemorySpace(100);
+        addresses = new int[] { 7, 7, 7 };
+        try {
+            memory.mallocBatch(new int[] { 10, 20, 0 }, addresses);
+            throw new AssertionError("A batch with a length of 0 should throw");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertString("7 7 7", addresses[0] + " " + addresses[1] + " " + addresses[2], "Batch addresses after an invalid length");
+
+        // An empty batch of frees does nothing, even when no block is allocated
+        memory.freeBatch(new int[0]);
+        assertExactString("(0 , 100) \n", memory.toString(), "Empty batch of frees");
+    }
+
+    private static void testRealloc() {
+        // Shrinking frees the tail
+        MemorySpace memory = new MemorySpace(100);
+        memory.malloc(50);
+        assertEqual(0, memory.realloc(0, 20), "Realloc shrink address");
+        assertString("(50 , 50) (20 , 30)\n(0 , 20)\n", memory.toString(), "Realloc shrink state");
+
+        // Growing takes the front of the free block that follows
+        memory = new MemorySpace(100);
+        memory.malloc(20);
+        assertEqual(0, memory.realloc(0, 60), "Realloc grow in place address");
+        assertString("(60 , 40)\n(0 , 60)\n", memory.toString(), "Realloc grow in place state");
+        assertEqual(0, memory.realloc(0, 100), "Realloc grow into the whole free block");
+        assertString("\n(0 , 100)\n", memory.toString(), "Realloc grow exact state");
+
+        // Growing takes a run of adjacent free blocks that were not merged by defrag
+        memory = new MemorySpace(100);
+        memory.malloc(20);
+        int addr2 = memory.malloc(20);
+        int addr3 = memory.malloc(20);
+        memory.free(addr2);
+        memory.free(addr3);
+        assertEqual(0, memory.realloc(0, 70), "Realloc grow over several free blocks address");
+        assertString("(70 , 30)\n(0 , 70)\n", memory.toString(), "Realloc grow over several free blocks state");
+
+        // A block that cannot grow in place moves
+        memory = new MemorySpace(100);
+        memory.malloc(20);
+        memory.malloc(20);
+        assertEqual(40, memory.realloc(0, 30), "Realloc move address");
+        assertString("(70 , 30) (0 , 20)\n(20 , 20) (40 , 30)\n", memory.toString(), "Realloc move state");
+
+        // On failure, the old block is kept
+        assertEqual(-1, memory.realloc(40, 200), "Realloc failure");
+        assertExactString("(70 , 30) (0 , 20) \n(20 , 20) (40 , 30) ", memory.toString(), "Realloc failure state");
+
+        // A block that cannot fit in the memory space is not grown past its end
+        memory = new MemorySpace(100);
+        memory.malloc(20);
+        int addr = memory.malloc(20);
+        assertEqual(-1, memory.realloc(addr, Integer.MAX_VALUE - 5), "Realloc oversized");
+        assertExactString("(40 , 60) \n(0 , 20) (20 , 20) ", memory.toString(), "Realloc oversized state");
+        assertEqual(40, memory.malloc(10), "Malloc after an oversized realloc");
+        try {
+            memory.realloc(5, 10);
+            throw new AssertionError("Realloc of an unallocated address should throw");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // An engine moves the block
+        memory = new MemorySpace(new AddressOrderedEngine(100));
+        memory.malloc(20);
+        assertEqual(20, memory.realloc(0, 30), "Realloc with an engine");
+        assertString("(0 , 20) (50 , 50)\n(20 , 30)\n", memory.toString(), "Realloc with an engine state");
+
+        // An engine shrinks the block in place, and frees its tail
+        assertEqual(20, memory.realloc(20, 10), "Realloc shrink with an engine");
+        assertExactString("(0 , 20) (30 , 70) \n(20 , 10) ", memory.toString(), "Realloc shrink with an engine state");
+        memory = new MemorySpace(new TlsfEngine(100));
+        memory.malloc(100);
+        assertEqual(0, memory.realloc(0, 40), "Realloc shrink with a full TLSF engine");
+        assertExactString("(40 , 60) \n(0 , 40) ", memory.toString(), "Realloc shrink with a TLSF engine state");
+
+        // An engine that cannot free part of a block keeps the block whole
+        memory = new MemorySpace(new BuddyEngine(64));
+        memory.malloc(64);
+        assertEqual(0, memory.realloc(0, 10), "Realloc shrink with a buddy engine");
+        assertExactString("\n(0 , 64) ", memory.toString(), "Realloc shrink with a buddy engine state");
+    }
+
+    private static void testMallocAligned() {
+        // The leading words stay free, and the trailing words follow them in the free list
+        MemorySpace memory = new MemorySpace(100);
+        memory.malloc(3);
+        assertEqual(8, memory.mallocAligned(10, 8), "Aligned address");
+        assertString("(3 , 5) (18 , 82)\n(0 , 3) (8 , 10)\n", memory.toString(), "Aligned state");
+        assertEqual(32, memory.mallocAligned(4, 16), "Aligned address skips a short block");
+        assertString("(3 , 5) (18 , 14) (36 , 64)\n(0 , 3) (8 , 10) (32 , 4)\n", memory.toString(),
+                "Aligned state after skipping");
+
+        // The policies select among the blocks that hold the aligned block
+        memory = new MemorySpace(100, new BestFitPolicy());
+        memory.malloc(3);
+        memory.mallocAligned(10, 8);
+        assertEqual(20, memory.mallocAligned(5, 4), "Best fit aligned");
+        assertEqual(18, memory.mallocAligned(2, 2), "Best fit aligned exact");
+        assertString("(3 , 5) (25 , 75)\n(0 , 3) (8 , 10) (20 , 5) (18 , 2)\n", memory.toString(),
+                "Best fit aligned state");
+
+        // An aligned malloc defragments and retries on failure
+        memory = new MemorySpace(32);
+        memory.malloc(16);
+        memory.malloc(16);
+        memory.free(16);
+        memory.free(0);
+        assertEqual(0, memory.mallocAligned(32, 32), "Aligned allocation after defrag");
+        try {
+            memory.mallocAligned(1, 3);
+            throw new AssertionError("An alignment which is not a power of two should throw");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void testBackingStore() {
+        MemorySpace memory = new MemorySpace(100);
+        memory.allocateBackingStore();
+        int addr1 = memory.malloc(2);
+        int addr2 = memory.malloc(1);
+        java.nio.IntBuffer words = memory.words(addr1);
+        assertEqual(2, words.capacity(), "Words view length");
+        assertEqual(8, memory.bytes(addr1).capacity(), "Bytes view length");
+        words.put(0, 7).put(1, 8);
+        memory.words(addr2).put(0, 9);
+        assertEqual(8, memory.words(addr1).get(1), "Words written through a view");
+        try {
+            words.put(2, 10);
+            throw new AssertionError("A write past the block should throw");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        assertEqual(9, memory.words(addr2).get(0), "Next block after a rejected write");
+
+        // realloc copies the contents of a block that it moves
+        int moved = memory.realloc(addr1, 4);
+        assertEqual(3, moved, "Moved block address");
+        assertEqual(7, memory.words(moved).get(0), "Moved block first word");
+        assertEqual(8, memory.words(moved).get(1), "Moved block second word");
+        try {
+            memory.words(addr1);
+            throw new AssertionError("A view of a freed block should throw");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void testPersistentEngine() {
+        try {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("memory-space");
+            java.nio.file.Path path = directory.resolve("space.mem");
+            PersistentEngine engine = new PersistentEngine(path, 100, true);
+            MemorySpace memory = new MemorySpace(engine);
+            memory.attachBackingStore(engine.getData());
+            int addr1 = memory.malloc(20);
+            int addr2 = memory.malloc(30);
+            memory.words(addr2).put(0, 42);
+            memory.free(addr1);
+            assertExactString("(0 , 20) (50 , 50) \n(20 , 30) ", memory.toString(), "Persistent state");
+            engine.close();
+
+            // Reopening the file restores the blocks and their words
+            engine = new PersistentEngine(path, 100);
+            memory = new MemorySpace(engine);
+            memory.attachBackingStore(engine.getData());
+            assertExactString("(0 , 20) (50 , 50) \n(20 , 30) ", memory.toString(), "Reopened state");
+            assertEqual(42, memory.words(addr2).get(0), "Reopened word");
+            memory.free(addr2);
+            memory.defrag();
+            assertExactString("(0 , 100) \n", memory.toString(), "Reopened defrag");
+            engine.close();
+
+            // Reopening checks the size of the memory space, both the one that the caller
+            // expects and the one in the header against the length of the file
+            try {
+                new PersistentEngine(path, 200);
+                throw new AssertionError("Reopening with another size should throw");
+            } catch (java.io.IOException e) {
+                // expected
+            }
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(path,
+                    java.nio.file.StandardOpenOption.WRITE)) {
+                java.nio.ByteBuffer size = java.nio.ByteBuffer.allocate(4).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+                size.putInt(0, 200); // the size field of the header, at byte 8
+                channel.write(size, 8);
+            }
+            try {
+                new PersistentEngine(path);
+                throw new AssertionError("Reopening a file whose header has another size should throw");
+            } catch (java.io.IOException e) {
+                // expected
+            }
+            java.nio.file.Files.delete(path);
+
+            // A process killed while it allocates and frees leaves a file that reopens correctly
+            String javaCommand = java.nio.file.Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            Process child = new ProcessBuilder(javaCommand, "-cp", System.getProperty("java.class.path"),
+                    "TestMemorySpace", "churn", path.toString()).redirectErrorStream(true).start();
+            java.io.BufferedReader output = new java.io.BufferedReader(new java.io.InputStreamReader(child.getInputStream()));
+            assertString("ready", String.valueOf(output.readLine()), "Churning process started");
+            Thread.sleep(300);
+            child.destroyForcibly().waitFor();
+
+            engine = new PersistentEngine(path);
+            long words = 0;
+            LinkedList blocks = engine.allocatedBlocks();
+            ListIterator iterator = blocks.iterator();
+            while (iterator.hasNext()) {
+                words += iterator.next().getLength();
+            }
+            int largest = 0;
+            iterator = engine.freeBlocks().iterator();
+            while (iterator.hasNext()) {
+                int length = iterator.next().getLength();
+                words += length;
+                largest = Math.max(largest, length);
+            }
+            assertEqual(1000, words, "Words after a crash");
+            // The free index agrees with the tags: it finds the largest free block
+            if (largest > 0) {
+                int address = engine.malloc(largest);
+                assertEqual(largest, engine.allocatedLength(address), "Free index after a crash");
+                engine.free(address);
+            }
+            // The count of allocated blocks agrees with the blocks: freeing them all leaves none
+            iterator = blocks.iterator();
+            while (iterator.hasNext()) {
+                engine.free(iterator.next().getBaseAddress());
+            }
+            try {
+                engine.free(0);
+                throw new AssertionError("Free with no allocated blocks should throw after a crash");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            engine.close();
+            java.nio.file.Files.delete(path);
+            java.nio.file.Files.delete(directory);
+        } catch (java.io.IOException | InterruptedException e) {
+            throw new AssertionError("Persistent engine test failed: " + e);
+        }
+    }
+
+    // Allocates and frees blocks of a persistent memory space until the process is killed
+    private static void churnPersistentEngine(java.nio.file.Path path) {
+        try {
+            MemorySpace memory = new MemorySpace(new PersistentEngine(path, 1000, false));
+            System.out.println("ready");
+            System.out.flush();
+            java.util.Random random = new java.util.Random();
+            int[] live = new int[64];
+            int count = 0;
+            while (true) {
+                if (count == 0 || (count < live.length && random.nextBoolean())) {
+                    int address = memory.malloc(1 + random.nextInt(30));
+                    if (address != -1) {
+                        live[count++] = address;
+                    }
+                } else {
+                    int index = random.nextInt(count);
+                    memory.free(live[index]);
+                    live[index] = live[--count];
+                }
+            }
+        } catch (java.io.IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void testSnapshot() {
+        MemorySpace memory = new MemorySpace(1000);
+        int[] addresses = new int[20];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = memory.malloc(i + 1);
+        }
+        for (int i = 0; i < addresses.length; i += 3) {
+            memory.free(addresses[i]);
+        }
+        memory.free(addresses[10]);
+        try {
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            memory.snapshot(out);
+            byte[] snapshot = out.toByteArray();
+
+            // The lists are restored in the same order, and behave the same afterwards
+            MemorySpace restored = MemorySpace.restore(new java.io.ByteArrayInputStream(snapshot));
+            assertSame(memory, restored, "Restored snapshot");
+            assertEqual(memory.malloc(5), restored.malloc(5), "Malloc after restore");
+            memory.free(addresses[4]);
+            restored.free(addresses[4]);
+            memory.defrag();
+            restored.defrag();
+            assertSame(memory, restored, "Free and defrag after restore");
+
+            // A corrupted or truncated snapshot is rejected
+            snapshot[snapshot.length / 2] ^= 1;
+            try {
+                MemorySpace.restore(new java.io.ByteArrayInputStream(snapshot));
+                throw new AssertionError("A corrupted snapshot should be rejected");
+            } catch (java.io.IOException e) {
+                // expected
+            }
+            try {
+                MemorySpace.restore(new java.io.ByteArrayInputStream(java.util.Arrays.copyOf(snapshot, 10)));
+                throw new AssertionError("A truncated snapshot should be rejected");
+            } catch (java.io.IOException e) {
+                // expected
+            }
+
+            // A snapshot with a valid checksum, whose blocks overlap, is rejected
+            out = new java.io.ByteArrayOutputStream();
+            SnapshotFormat.Writer writer = new SnapshotFormat.Writer(out);
+            writer.writeFixed(SnapshotFormat.MAGIC);
+            writer.writeFixed(SnapshotFormat.VERSION);
+            writer.writeVarint(100);
+            writer.writeVarint(1); // the free block (0 , 50)
+            writer.writeSignedVarint(0);
+            writer.writeVarint(50);
+            writer.writeVarint(1); // the allocated block (40 , 50)
+            writer.writeSignedVarint(40);
+            writer.writeVarint(50);
+            writer.finish();
+            try {
+                MemorySpace.restore(new java.io.ByteArrayInputStream(out.toByteArray()));
+                throw new AssertionError("A snapshot with overlapping blocks should be rejected");
+            } catch (java.io.IOException e) {
+                // expected
+            }
+        } catch (java.io.IOException e) {
+            throw new AssertionError("Snapshot test failed: " + e);
+        }
+    }
+
+    private static void testOperationJournal() {
+        try {
+            java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("memory-journal");
+            OperationJournal journal = OperationJournal.open(directory, 1000);
+            MemorySpace memory = journal.getSpace();
+            memory.setDefragThreshold(4);
+            int[] addresses = new int[20];
+            for (int i = 0; i < addresses.length; i++) {
+                addresses[i] = memory.malloc(i + 1);
+            }
+            for (int i = 0; i < addresses.length; i += 2) {
+                memory.free(addresses[i]);
+            }
+            memory.realloc(addresses[1], 40);
+            memory.realloc(addresses[3], 1);
+            memory.mallocAligned(10, 64);
+            int[] batch = new int[3];
+            memory.mallocBatch(new int[] { 5, 50, 7 }, batch);
+            memory.freeBatch(batch);
+            String state = memory.toString();
+            journal.close();
+
+            // Reopening replays the log
+            journal = OperationJournal.open(directory, 1000);
+            assertString(state, journal.getSpace().toString(), "Replayed journal");
+
+            // After a checkpoint, the snapshot and the log tail are replayed
+            memory = journal.getSpace();
+            journal.checkpoint();
+            memory.malloc(5);
+            memory.free(addresses[5]);
+            memory.defrag();
+            state = memory.toString();
+            journal.close();
+            journal = OperationJournal.open(directory, 1000);
+            assertString(state, journal.getSpace().toString(), "Replayed checkpoint and log tail");
+            assertEqual(memory.malloc(30), journal.getSpace().malloc(30), "Malloc after replay");
+
+            // Operations in a group that was not committed are lost, and a partly written group
+            // is cut off. The journal is then abandoned, as by a crash.
+            memory = journal.getSpace();
+            journal.setGroupSize(100);
+            journal.commit();
+            state = memory.toString();
+            memory.malloc(3);
+            java.nio.file.Path log = null;
+            try (java.nio.file.DirectoryStream<java.nio.file.Path> files =
+                    java.nio.file.Files.newDirectoryStream(directory, "journal.*")) {
+                for (java.nio.file.Path file : files) {
+                    log = file;
+                }
+            }
+            java.nio.file.Files.write(log, new byte[] { 0, 0, 0, 9, 1, 2 }, java.nio.file.StandardOpenOption.APPEND);
+            OperationJournal reopened = OperationJournal.open(directory, 1000);
+            assertString(state, reopened.getSpace().toString(), "Replay after a crash");
+            reopened.getSpace().malloc(7);
+            state = reopened.getSpace().toString();
+            reopened.close();
+            reopened = OperationJournal.open(directory, 1000);
+            assertString(state, reopened.getSpace().toString(), "Replay of records appended after the cut");
+            reopened.close();
+
+            try (java.nio.file.DirectoryStream<java.nio.file.Path> files = java.nio.file.Files.newDirectoryStream(directory)) {
+                for (java.nio.file.Path file : files) {
+                    java.nio.file.Files.delete(file);
+                }
+            }
+            java.nio.file.Files.delete(directory);
+        } catch (java.io.IOException e) {
+            throw new AssertionError("Journal test failed: " + e);
+        }
+    }
+
+    private static void testTraceReplay() {
+        String text = "# a small trace\n"
+                + "m 1 20\n"
+                + "malloc 2 30\n"
+                + "\n"
+                + "m 3 80\n"
+                + "f 1\n"
+                + "f 7\n"
+                + "m 4 40   # fits only after the free block at 0\n"
+                + "d\n";
+        try {
+            MemorySpace memory = new MemorySpace(100);
+            TraceReplay replay = new TraceReplay(memory);
+            replay.setSampleInterval(2);
+            replay.replay(new TraceFormat.Reader(new java.io.ByteArrayInputStream(text.getBytes())));
+            assertEqual(7, replay.getOperations(), "Replayed operations");
+            assertEqual(1, replay.getFailedMallocs(), "Failed mallocs");
+            assertEqual(1, replay.getSkippedFrees(), "Skipped frees");
+            assertEqual(70, replay.getPeakLiveWords(), "Peak live words");
+            assertString("(0 , 20) (90 , 10)\n(20 , 30) (50 , 40)\n", memory.toString(), "Replayed state");
+
+            // The binary form of the same trace replays the same way
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            TraceFormat.Writer writer = new TraceFormat.Writer(out, true);
+            TraceFormat.Reader reader = new TraceFormat.Reader(new java.io.ByteArrayInputStream(text.getBytes()));
+            while (reader.next()) {
+                if (reader.operation() == TraceFormat.MALLOC) {
+                    writer.malloc(reader.id(), reader.length());
+                } else if (reader.operation() == TraceFormat.FREE) {
+                    writer.free(reader.id());
+                } else {
+                    writer.defrag();
+                }
+            }
+            writer.close();
+            MemorySpace binaryMemory = new MemorySpace(100);
+            reader = new TraceFormat.Reader(new java.io.ByteArrayInputStream(out.toByteArray()));
+            assertEqual(1, reader.isBinary() ? 1 : 0, "Binary trace recognized");
+            new TraceReplay(binaryMemory).replay(reader);
+            assertSame(memory, binaryMemory, "Replayed binary trace");
+
+            // A malformed line is reported with its number
+            try {
+                new TraceReplay(new MemorySpace(100)).replay(new TraceFormat.Reader(
+                        new java.io.ByteArrayInputStream("m 1 20\nx 2\n".getBytes())));
+                throw new AssertionError("A malformed trace should be rejected");
+            } catch (java.io.IOException e) {
+                assertEqual(1, e.getMessage().contains("line 2") ? 1 : 0, "Malformed line number");
+            }
+
+            // A length that is not positive is malformed, in both forms
+            try {
+                new TraceReplay(new MemorySpace(100)).replay(new TraceFormat.Reader(
+                        new java.io.ByteArrayInputStream("m 1 0\n".getBytes())));
+                throw new AssertionError("A zero length should be rejected");
+            } catch (java.io.IOException e) {
+                assertEqual(1, e.getMessage().startsWith("Malformed trace") ? 1 : 0, "Malformed zero length");
+            }
+            out = new java.io.ByteArrayOutputStream();
+            new TraceFormat.Writer(out, true).close();
+            // A malloc of id 1 whose length, a 5-byte varint, decodes to -1
+            out.write(new byte[] { TraceFormat.MALLOC, 1, -1, -1, -1, -1, 0x0F });
+            try {
+                new TraceReplay(new MemorySpace(100)).replay(new TraceFormat.Reader(
+                        new java.io.ByteArrayInputStream(out.toByteArray())));
+                throw new AssertionError("A negative length should be rejected");
+            } catch (java.io.IOException e) {
+                assertEqual(1, e.getMessage().startsWith("Malformed trace") ? 1 : 0, "Malformed negative length");
+            }
+        } catch (java.io.IOException e) {
+            throw new AssertionError("Trace replay test failed: " + e);
+        }
+    }
+
+    private static void testWorkloadGenerator() {
+        try {
+            // The same seed generates the same workload, also through a trace file
+            WorkloadGenerator workload = new WorkloadGenerator(WorkloadGenerator.Shape.PEAK,
+                    WorkloadGenerator.sizes("bimodal"), 1000, 100, 7);
+            workload.setDefragInterval(100);
+            java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+            workload.writeTo(new TraceFormat.Writer(out, false));
+            WorkloadGenerator same = new WorkloadGenerator(WorkloadGenerator.Shape.PEAK,
+                    WorkloadGenerator.sizes("bimodal"), 1000, 100, 7);
+            same.setDefragInterval(100);
+            TraceFormat.Reader reader = new TraceFormat.Reader(new java.io.ByteArrayInputStream(out.toByteArray()));
+            int operations = 0;
+            int defrags = 0;
+            while (same.next()) {
+                assertEqual(1, reader.next() ? 1 : 0, "Trace has operation " + operations);
+                assertEqual(same.operation(), reader.operation(), "Operation " + operations);
+                if (same.operation() != TraceFormat.DEFRAG) {
+                    assertEqual(same.id(), reader.id(), "Id of operation " + operations);
+                }
+                if (same.operation() == TraceFormat.MALLOC) {
+                    assertEqual(same.length(), reader.length(), "Length of operation " + operations);
+                } else if (same.operation() == TraceFormat.DEFRAG) {
+                    defrags++;
+                }
+                operations++;
+            }
+            assertEqual(0, reader.next() ? 1 : 0, "Trace ends with the workload");
+            assertEqual(1000, operations, "Workload operations");
+            assertEqual(10, defrags, "Workload defrags");
+
+            // A peak rises and drains, and a producer-consumer frees in allocation order
+            TraceReplay replay = new TraceReplay(new MemorySpace(100000));
+            replay.replay(new WorkloadGenerator(WorkloadGenerator.Shape.PEAK, WorkloadGenerator.sizes("uniform"),
+                    4000, 1000, 3));
+            assertEqual(0, replay.getFailedMallocs(), "Peak workload failures");
+            assertEqual(1, replay.getPeakLiveWords() > 200 * 32 ? 1 : 0, "Peak workload rises");
+            workload = new WorkloadGenerator(WorkloadGenerator.Shape.PRODUCER_CONSUMER,
+                    WorkloadGenerator.sizes("exponential"), 10000, 50, 5);
+            java.util.ArrayDeque<Integer> queue = new java.util.ArrayDeque<Integer>();
+            while (workload.next()) {
+                if (workload.operation() == TraceFormat.MALLOC) {
+                    queue.addLast(workload.id());
+                } else {
+                    assertEqual(queue.removeFirst(), workload.id(), "Producer-consumer free order");
+                }
+            }
+        } catch (java.io.IOException e) {
+            throw new AssertionError("Workload generator test failed: " + e);
+        }
+    }
+
+    private static void testLockFreeEngine() {
+        MemorySpace memory = new MemorySpace(new LockFreeEngine(100));
+        int addr1 = memory.malloc(20);
+        int addr2 = memory.malloc(30);
+        assertEqual(0, addr1, "Lock-free first allocation");
+        assertEqual(20, addr2, "Lock-free second allocation");
+        assertString("(50 , 50)\n(0 , 20) (20 , 30)\n", memory.toString(), "Lock-free state");
+
+        // Freed blocks are pushed to the front of the free list, and merged by defrag
+        memory.free(addr1);
+        memory.free(addr2);
+        assertExactString("(20 , 30) (0 , 20) (50 , 50) \n", memory.toString(), "Lock-free free");
+        memory.defrag();
+        assertString("(0 , 100)\n\n", memory.toString(), "Lock-free defrag");
+        assertEqual(0, memory.malloc(100), "Lock-free exact fit");
+        assertEqual(-1, memory.malloc(1), "Lock-free allocation failure");
+
+        // Threads that churn on a shared engine, while another thread defragments it,
+        // are never given the same words twice, and no words are lost
+        LockFreeEngine shared = new LockFreeEngine(4096);
+        assertNoOverlaps(shared::malloc, shared::free, shared::defrag, 4096, "Overlapping lock-free blocks");
+        shared.defrag();
+        assertString("(0 , 4096)\n", shared.freeBlocks().toString(), "Lock-free words after the stress");
+    }
+
+    private static void testThreadCacheAllocator() {
+        ThreadCacheAllocator cache = new ThreadCacheAllocator(new MemorySpace(100));
+        assertEqual(0, cache.malloc(10), "Cache miss");
+        cache.free(0);
+        // The cached block is still allocated in the memory space, and serves the next malloc
+        assertExactString("(10 , 90) \n(0 , 10) ", cache.toString(), "Cached block");
+        assertEqual(0, cache.malloc(10), "Cache hit");
+        assertEqual(1, cache.getHits(), "Cache hits");
+        assertEqual(1, cache.getMisses(), "Cache misses");
+        cache.free(0);
+        cache.flush();
+        assertExactString("(10 , 90) (0 , 10) \n", cache.toString(), "Cache flush");
+
+        // A second free of a cached block is ignored, and does not free it to the memory space
+        cache = new ThreadCacheAllocator(new MemorySpace(100));
+        cache.malloc(10);
+        cache.free(0);
+        cache.free(0);
+        assertExactString("(10 , 90) \n(0 , 10) ", cache.toString(), "Cache double free");
+        assertEqual(0, cache.malloc(10), "Cached block after double free");
+        assertEqual(10, cache.malloc(10), "Next block after double free");
+
+        // An overflowing bin frees its oldest blocks under one lock acquisition
+        MemorySpace space = new MemorySpace(100);
+        cache = new ThreadCacheAllocator(space);
+        for (int i = 0; i < 33; i++) {
+            cache.malloc(1);
+        }
+        for (int i = 0; i < 33; i++) {
+            cache.free(i);
+        }
+        assertEqual(34, cache.getLockAcquisitions(), "Lock acquisitions with overflow");
+        assertEqual(32, cache.malloc(1), "Most recently freed block");
+        assertEqual(31, cache.malloc(1), "Next most recently freed block");
+        assertEqual(17, space.freeBlocks().getSize(), "Oldest blocks returned to the memory space");
+
+        // The blocks cached by an ended thread are returned when the memory space runs out
+        ThreadCacheAllocator shared = new ThreadCacheAllocator(new MemorySpace(100));
+        Thread thread = new Thread(() -> shared.free(shared.malloc(100)));
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new AssertionError("Cache test interrupted");
+        }
+        assertEqual(0, shared.malloc(60), "Blocks of an ended thread");
+
+        // A block freed by another thread goes to the memory space
+        int[] address = new int[1];
+        thread = new Thread(() -> address[0] = shared.malloc(40));
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new AssertionError("Cache test interrupted");
+        }
+        shared.free(address[0]);
+        assertExactString("(60 , 40) \n(0 , 60) ", shared.toString(), "Block freed by another thread");
+
+        ThreadCacheAllocator churned = new ThreadCacheAllocator(new MemorySpace(4096));
+        assertNoOverlaps(churned::malloc, churned::free, churned::defrag, 4096, "Overlapping cached blocks");
+    }
+
+    // Runs 4 threads that churn on a shared memory space (and one that defrags it, if given),
+    // marking the words of every block they are given, and asserts that no word is given
+    // to two blocks at once. Every thread frees its blocks before it ends.
+    private static void assertNoOverlaps(java.util.function.IntUnaryOperator malloc,
+            java.util.function.IntConsumer free, Runnable defrag, int maxSize, String message) {
+        java.util.concurrent.atomic.AtomicIntegerArray owners = new java.util.concurrent.atomic.AtomicIntegerArray(maxSize);
+        java.util.concurrent.atomic.AtomicInteger overlaps = new java.util.concurrent.atomic.AtomicInteger();
+        java.util.concurrent.atomic.AtomicInteger running = new java.util.concurrent.atomic.AtomicInteger(4);
+        Thread[] workers = new Thread[(defrag == null) ? 4 : 5];
+        for (int t = 0; t < 4; t++) {
+            int owner = t + 1;
+            workers[t] = new Thread(() -> {
+                java.util.Random random = new java.util.Random(owner);
+                int[] addresses = new int[32];
+                int[] lengths = new int[32];
+                int count = 0;
+                for (int i = 0; i < 20000 || count > 0; i++) {
+                    if (i < 20000 && (count == 0 || (count < addresses.length && random.nextBoolean()))) {
+                        int length = 1 + random.nextInt(32);
+                        int address = malloc.applyAsInt(length);
+                        if (address == -1) {
+                            continue;
+                        }
+                        for (int w = address; w < address + length; w++) {
+                            if (!owners.compareAndSet(w, 0, owner)) {
+                                overlaps.incrementAndGet();
+                            }
+                        }
+                        addresses[count] = address;
+                        lengths[count++] = length;
+                    } else {
+                        int index = random.nextInt(count);
+                        for (int w = addresses[index]; w < addresses[index] + lengths[index]; w++) {
+                            owners.set(w, 0);
+                        }
+                        free.accept(addresses[index]);
+                        addresses[index] = addresses[--count];
+                        lengths[index] = lengths[count];
+                    }
+                }
+                running.decrementAndGet();
+            });
+        }
+        if (defrag != null) {
+            workers[4] = new Thread(() -> {
+                while (running.get() > 0) {
+                    defrag.run();
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                throw new AssertionError(message + ": interrupted");
+            }
+        }
+        assertEqual(0, overlaps.get(), message);
+    }
+
+    private static void assertEqual(long expected, long actual, String message) {
         if (expected != actual) {
             throw new AssertionError(message + ": Expected " + expected + " but got " + actual);
         }
     }
 
+    // Compares the strings as they are, including the order of the blocks and of the lines
+    private static void assertExactString(String expected, String actual, String message) {
+        if (!expected.equals(actual)) {
+            throw new AssertionError(message + ":\nExpected: " + expected + "\nActual: " + actual);
+        }
+    }
+
     private static void assertString(String expected, String actual, String message) {
         // Normalize and split the strings into sets of blocks
         String[] expectedBlocks = normalizeString(expected).split("\\)\\(");
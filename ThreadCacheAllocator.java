@@ -0,0 +1,327 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe allocator that layers a cache per thread in front of a shared memory space.
+ * <p>
+ * Every thread keeps, for each length up to MAX_CACHED_SIZE words, a bin of up to
+ * BIN_CAPACITY blocks of that length that it has recently freed. A malloc of that length
+ * takes the most recently freed block of its bin, and a free puts the block into its bin,
+ * so neither touches the memory space or its lock. The memory space sees a cached block
+ * as still allocated. When a bin overflows, its FLUSH_BATCH oldest blocks are freed to the
+ * memory space under a single acquisition of the lock.
+ * <p>
+ * Every thread records the lengths of the blocks that it allocated, so a thread can only
+ * cache the blocks that it allocated itself. A block freed by another thread goes to the
+ * memory space, and is erased from the records of the thread that allocated it; this
+ * looks at every thread's records, so it costs more than a free by the allocating thread.
+ * The blocks cached by a thread are returned to the memory space by flush, or, once the
+ * thread has ended, by the next defrag or the next malloc that the memory space cannot
+ * satisfy. A thread's records also mark the blocks that are in its bins, so a second free
+ * of a cached block, by any thread, is ignored.
+ */
+public class ThreadCacheAllocator {
+
+	// The longest block that is cached, in words
+	public static final int MAX_CACHED_SIZE = 64;
+
+	// The number of blocks that a bin can hold
+	private static final int BIN_CAPACITY = 32;
+
+	// The number of blocks that an overflowing bin frees to the memory space at once
+	private static final int FLUSH_BATCH = 16;
+
+	// The shared memory space, and the lock that guards it
+	private final MemorySpace space;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// The cache of every thread that used this allocator, and of the calling thread
+	private final ConcurrentLinkedQueue<Cache> caches = new ConcurrentLinkedQueue<Cache>();
+	private final ThreadLocal<Cache> threadCache = ThreadLocal.withInitial(this::newCache);
+
+	// Mallocs served from a cache, mallocs served by the memory space, and lock acquisitions
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder lockAcquisitions = new LongAdder();
+
+	/**
+	 * Constructs a new allocator in front of the given memory space. The memory space
+	 * must not be used directly while the allocator is in use.
+	 *
+	 * @param space
+	 *        the memory space from which the blocks are allocated
+	 */
+	public ThreadCacheAllocator(MemorySpace space) {
+		if (space == null) {
+			throw new NullPointerException("MemorySpace cannot be null");
+		}
+		this.space = space;
+	}
+
+	/**
+	 * Gets the number of mallocs that were served from a thread's cache
+	 * @return the number of cache hits.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Gets the number of mallocs that were served by the memory space
+	 * @return the number of cache misses.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Gets the fraction of the mallocs that were served from a thread's cache
+	 * @return the cache hit rate, between 0 and 1.
+	 */
+	public double getHitRate() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return (total == 0) ? 0 : (double) hitCount / total;
+	}
+
+	/**
+	 * Gets the number of times that the lock of the memory space was acquired
+	 * @return the number of lock acquisitions.
+	 */
+	public long getLockAcquisitions() {
+		return lockAcquisitions.sum();
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words), from the calling
+	 * thread's cache if it holds a block of that length, and otherwise from the memory space.
+	 *
+	 * @param length
+	 *        the length (in words) of the memory block that has to be allocated
+	 * @return the base address of the allocated block, or -1 if unable to allocate
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		Cache cache = threadCache.get();
+		if (length <= MAX_CACHED_SIZE) {
+			int[] bin = cache.bins[length];
+			int count = cache.counts[length];
+			if (count > 0) {
+				cache.counts[length] = count - 1;
+				int address = bin[count - 1];
+				cache.record(address, length);
+				hits.increment();
+				return address;
+			}
+		}
+		misses.increment();
+
+		int address;
+		lockCentral();
+		try {
+			address = space.malloc(length);
+			if (address == -1 && reclaimEndedThreads()) {
+				address = space.malloc(length);
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (address != -1) {
+			cache.record(address, length);
+		}
+		return address;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, into the
+	 * calling thread's cache if the thread allocated the block and its length is cached,
+	 * and otherwise to the memory space.
+	 *
+	 * @param address
+	 *        the base address of the block to free
+	 */
+	public void free(int address) {
+		Cache cache = threadCache.get();
+		int length = cache.release(address);
+		if (length == Cache.CACHED) {
+			// The block is already in a bin of this thread
+			return;
+		}
+		if (length == -1 || length > MAX_CACHED_SIZE) {
+			lockCentral();
+			try {
+				if (length == -1) {
+					// The block may have been allocated by another thread
+					for (Cache other : caches) {
+						int otherLength = other.erase(address);
+						if (otherLength == Cache.CACHED) {
+							return; // the block is already in a bin of the other thread
+						}
+						if (otherLength != -1) {
+							break;
+						}
+					}
+				}
+				space.free(address);
+			} finally {
+				lock.unlock();
+			}
+			return;
+		}
+
+		int[] bin = cache.bins[length];
+		if (cache.counts[length] == BIN_CAPACITY) {
+			// Free the oldest blocks of the bin, which are at its bottom
+			lockCentral();
+			try {
+				for (int i = 0; i < FLUSH_BATCH; i++) {
+					cache.forget(bin[i]);
+					space.free(bin[i]);
+				}
+			} finally {
+				lock.unlock();
+			}
+			System.arraycopy(bin, FLUSH_BATCH, bin, 0, BIN_CAPACITY - FLUSH_BATCH);
+			cache.counts[length] = BIN_CAPACITY - FLUSH_BATCH;
+		}
+		bin[cache.counts[length]++] = address;
+	}
+
+	/**
+	 * Returns all the blocks cached by the calling thread to the memory space.
+	 */
+	public void flush() {
+		Cache cache = threadCache.get();
+		lockCentral();
+		try {
+			flush(cache);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the blocks cached by ended threads to the memory space, and performs
+	 * defragmentation of the memory space.
+	 */
+	public void defrag() {
+		lockCentral();
+		try {
+			reclaimEndedThreads();
+			space.defrag();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A textual representation of the memory space, in which cached blocks appear as allocated.
+	 */
+	public String toString() {
+		lockCentral();
+		try {
+			return space.toString();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void lockCentral() {
+		lock.lock();
+		lockAcquisitions.increment();
+	}
+
+	// Frees the blocks cached by the threads that have ended, and returns true if there were any.
+	// Must be called with the lock held.
+	private boolean reclaimEndedThreads() {
+		boolean reclaimed = false;
+		Iterator<Cache> iterator = caches.iterator();
+		while (iterator.hasNext()) {
+			Cache cache = iterator.next();
+			// Seeing that the thread is no longer alive also makes its writes to the cache visible
+			if (!cache.owner.isAlive()) {
+				reclaimed |= flush(cache);
+				iterator.remove();
+			}
+		}
+		return reclaimed;
+	}
+
+	// Frees all the blocks of the given cache, and returns true if there were any.
+	// Must be called with the lock held.
+	private boolean flush(Cache cache) {
+		boolean flushed = false;
+		for (int length = 1; length <= MAX_CACHED_SIZE; length++) {
+			for (int i = 0; i < cache.counts[length]; i++) {
+				cache.forget(cache.bins[length][i]);
+				space.free(cache.bins[length][i]);
+				flushed = true;
+			}
+			cache.counts[length] = 0;
+		}
+		return flushed;
+	}
+
+	private Cache newCache() {
+		Cache cache = new Cache(Thread.currentThread());
+		caches.add(cache);
+		return cache;
+	}
+
+	/**
+	 * The cache of one thread. Only its owner thread uses the bins, until the thread ends.
+	 * The lengths are also erased by other threads, so they are accessed under the cache's
+	 * own monitor, which is almost never contended.
+	 */
+	private static class Cache {
+		// The recorded length of a block that is in a bin
+		static final int CACHED = 0;
+
+		final Thread owner;
+		// For every length, a stack of cached blocks, the most recently freed on top
+		final int[][] bins = new int[MAX_CACHED_SIZE + 1][BIN_CAPACITY];
+		final int[] counts = new int[MAX_CACHED_SIZE + 1];
+		// The lengths of the blocks that the thread allocated and that were not freed yet,
+		// and CACHED for the blocks in the bins
+		private final IntIntHashMap lengths = new IntIntHashMap();
+
+		Cache(Thread owner) {
+			this.owner = owner;
+		}
+
+		synchronized void record(int address, int length) {
+			lengths.put(address, length);
+		}
+
+		// Marks the given block as cached if its length is cached, and erases it otherwise.
+		// Returns its length, CACHED if it is already cached, or -1 if it is not recorded here.
+		synchronized int release(int address) {
+			int length = lengths.get(address);
+			if (length > MAX_CACHED_SIZE) {
+				lengths.remove(address);
+			} else if (length > 0) {
+				lengths.put(address, CACHED);
+			}
+			return length;
+		}
+
+		// Erases the given block, unless it is cached. Returns its length, CACHED if it
+		// is cached, or -1 if it is not recorded here.
+		synchronized int erase(int address) {
+			int length = lengths.get(address);
+			if (length > 0) {
+				lengths.remove(address);
+			}
+			return length;
+		}
+
+		// Erases the given block, which leaves the bins
+		synchronized void forget(int address) {
+			lengths.remove(address);
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/**
+ * A two-level segregated fit (TLSF) allocation engine.
+ * <p>
+ * Free blocks are kept in segregated lists, one list per size class. A size class is
+ * identified by a first-level index (the position of the highest set bit of the size)
+ * and a second-level index (the next SL_LOG2 bits of the size). Two levels of bitmaps
+ * record which lists are not empty, so finding a suitable free block takes a constant
+ * number of bit operations, regardless of the number of free blocks. Only when every
+ * larger class is empty does malloc look into the request's own class, where a block
+ * may be too short; it then checks at most MAX_CLASS_PROBES blocks, so that malloc
+ * stays in bounded time, and fails rather than scan a long list.
+ * <p>
+ * Every block also knows its physical neighbours (the blocks just before and just after
+ * it in the address space), so free coalesces the freed block with its free neighbours
+ * immediately, in constant time. As a result, defrag has nothing left to do.
+ */
+public class TlsfEngine implements MemoryEngine {
+
+	// Number of bits of the second-level index, and the number of second-level lists
+	private static final int SL_LOG2 = 4;
+	private static final int SL_COUNT = 1 << SL_LOG2;
+
+	// Sizes below this value are mapped linearly into first-level list 0
+	private static final int SMALL_SIZE = 1 << SL_LOG2;
+
+	// Enough first-level lists for any positive int size
+	private static final int FL_COUNT = 32 - SL_LOG2;
+
+	// The number of blocks of the request's own class that malloc checks, when every
+	// larger class is empty
+	private static final int MAX_CLASS_PROBES = 4;
+
+	// Bitmap of the first-level lists that have at least one non-empty second-level list
+	private int flBitmap;
+
+	// For each first-level list, a bitmap of its non-empty second-level lists
+	private int[] slBitmap = new int[FL_COUNT];
+
+	// The heads of the segregated free lists
+	private Block[][] freeHeads = new Block[FL_COUNT][SL_COUNT];
+
+	// The allocated blocks, by base address
+	private IntHashMap<Block> allocated = new IntHashMap<Block>();
+
+	// The block that starts at address 0 (the head of the physical block chain)
+	private Block first;
+
+	// Total size of the memory space
+	private int maxSize;
+
+	/**
+	 * Constructs a new TLSF engine that manages a memory space of a given maximal size.
+	 *
+	 * @param maxSize
+	 *        the size of the memory space to be managed
+	 */
+	public TlsfEngine(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("Memory size must not be negative");
+		}
+		this.maxSize = maxSize;
+		if (maxSize > 0) {
+			first = new Block(0, maxSize);
+			insertFree(first);
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Allocates a memory block of a requested length (in words). Returns the
+	 * base address of the allocated block, or -1 if unable to allocate.
+	 * <p>
+	 * The request is rounded up to the next size class, so that any block in the
+	 * selected list is large enough. The found block is split, and its tail is
+	 * returned to the free lists.
+	 */
+	public int malloc(int length) {
+		if (length <= 0) {
+			throw new IllegalArgumentException("Block size must be positive");
+		}
+		if (length > maxSize) {
+			return -1;
+		}
+
+		Block block = findSuitable(length);
+		if (block == null) {
+			return -1;
+		}
+		removeFree(block);
+
+		if (block.length > length) {
+			// Split the block, and return its tail to the free lists
+			Block remainder = new Block(block.base + length, block.length - length);
+			remainder.prevPhys = block;
+			remainder.nextPhys = block.nextPhys;
+			if (block.nextPhys != null) {
+				block.nextPhys.prevPhys = remainder;
+			}
+			block.nextPhys = remainder;
+			block.length = length;
+			insertFree(remainder);
+		}
+
+		block.free = false;
+		allocated.put(block.base, block);
+		return block.base;
+	}
+
+	/**
+	 * Frees the memory block whose base address equals the given address, and
+	 * merges it with its free physical neighbours. Addresses that are not allocated
+	 * are ignored.
+	 */
+	public void free(int address) {
+		if (allocated.isEmpty()) {
+			throw new IllegalArgumentException("index must be between 0 and size");
+		}
+		Block block = allocated.remove(address);
+		if (block == null) {
+			return;
+		}
+		block.free = true;
+
+		// Merge with the next block
+		Block next = block.nextPhys;
+		if (next != null && next.free) {
+			removeFree(next);
+			absorbNext(block);
+		}
+
+		// Merge with the previous block
+		Block prev = block.prevPhys;
+		if (prev != null && prev.free) {
+			removeFree(prev);
+			absorbNext(prev);
+			block = prev;
+		}
+
+		insertFree(block);
+	}
+
+	/**
+	 * Shrinks the allocated block in place. Its tail becomes a free block, which is merged
+	 * with the next block if that one is free.
+	 */
+	public boolean shrink(int address, int newLength) {
+		Block block = allocated.get(address);
+		if (block == null) {
+			return false;
+		}
+		Block tail = new Block(block.base + newLength, block.length - newLength);
+		tail.free = true;
+		tail.prevPhys = block;
+		tail.nextPhys = block.nextPhys;
+		if (block.nextPhys != null) {
+			block.nextPhys.prevPhys = tail;
+		}
+		block.nextPhys = tail;
+		block.length = newLength;
+
+		Block next = tail.nextPhys;
+		if (next != null && next.free) {
+			removeFree(next);
+			absorbNext(tail);
+		}
+		insertFree(tail);
+		return true;
+	}
+
+	public int allocatedLength(int address) {
+		Block block = allocated.get(address);
+		return (block == null) ? -1 : block.length;
+	}
+
+	/**
+	 * Free blocks are coalesced as soon as they are freed, so there is nothing to do.
+	 */
+	public void defrag() {
+	}
+
+	public LinkedList freeBlocks() {
+		return collectBlocks(true);
+	}
+
+	public LinkedList allocatedBlocks() {
+		return collectBlocks(false);
+	}
+
+	// Returns copies of the free or allocated blocks, in address order
+	private LinkedList collectBlocks(boolean free) {
+		LinkedList list = new LinkedList();
+		for (Block block = first; block != null; block = block.nextPhys) {
+			if (block.free == free) {
+				list.addLast(new MemoryBlock(block.base, block.length));
+			}
+		}
+		return list;
+	}
+
+	// Merges the physical successor of the given block into it
+	private void absorbNext(Block block) {
+		Block next = block.nextPhys;
+		block.length += next.length;
+		block.nextPhys = next.nextPhys;
+		if (next.nextPhys != null) {
+			next.nextPhys.prevPhys = block;
+		}
+	}
+
+	// Finds a free block of at least the given length, or returns null
+	private Block findSuitable(int length) {
+		// Round the request up to the next class, so that every block in the class fits
+		int fl;
+		int sl;
+		if (length < SMALL_SIZE) {
+			fl = 0;
+			sl = length;
+		} else {
+			int shift = highestBit(length) - SL_LOG2;
+			long rounded = (long) length + (1L << shift) - 1;
+			if (rounded <= Integer.MAX_VALUE) {
+				fl = firstLevel((int) rounded);
+				sl = secondLevel((int) rounded);
+			} else {
+				fl = FL_COUNT;
+				sl = 0;
+			}
+		}
+
+		if (fl < FL_COUNT) {
+			int slMap = slBitmap[fl] & (~0 << sl);
+			if (slMap == 0) {
+				int flMap = (fl + 1 < FL_COUNT) ? flBitmap & (~0 << (fl + 1)) : 0;
+				if (flMap != 0) {
+					fl = Integer.numberOfTrailingZeros(flMap);
+					slMap = slBitmap[fl];
+				}
+			}
+			if (slMap != 0) {
+				return freeHeads[fl][Integer.numberOfTrailingZeros(slMap)];
+			}
+		}
+
+		// Nothing in the larger classes: a block of the request's own class may still fit,
+		// but only a few of them are checked, so that the search stays bounded
+		Block block = freeHeads[firstLevel(length)][secondLevel(length)];
+		for (int probes = 0; block != null && probes < MAX_CLASS_PROBES; probes++) {
+			if (block.length >= length) {
+				return block;
+			}
+			block = block.nextFree;
+		}
+		return null;
+	}
+
+	// Adds the given block to the head of the free list of its size class
+	private void insertFree(Block block) {
+		int fl = firstLevel(block.length);
+		int sl = secondLevel(block.length);
+		block.free = true;
+		block.prevFree = null;
+		block.nextFree = freeHeads[fl][sl];
+		if (block.nextFree != null) {
+			block.nextFree.prevFree = block;
+		}
+		freeHeads[fl][sl] = block;
+		flBitmap |= 1 << fl;
+		slBitmap[fl] |= 1 << sl;
+	}
+
+	// Removes the given block from the free list of its size class
+	private void removeFree(Block block) {
+		int fl = firstLevel(block.length);
+		int sl = secondLevel(block.length);
+		if (block.prevFree != null) {
+			block.prevFree.nextFree = block.nextFree;
+		} else {
+			freeHeads[fl][sl] = block.nextFree;
+		}
+		if (block.nextFree != null) {
+			block.nextFree.prevFree = block.prevFree;
+		}
+		block.prevFree = null;
+		block.nextFree = null;
+		if (freeHeads[fl][sl] == null) {
+			slBitmap[fl] &= ~(1 << sl);
+			if (slBitmap[fl] == 0) {
+				flBitmap &= ~(1 << fl);
+			}
+		}
+	}
+
+	private static int highestBit(int size) {
+		return 31 - Integer.numberOfLeadingZeros(size);
+	}
+
+	private static int firstLevel(int size) {
+		return (size < SMALL_SIZE) ? 0 : highestBit(size) - SL_LOG2 + 1;
+	}
+
+	private static int secondLevel(int size) {
+		return (size < SMALL_SIZE) ? size : (size >>> (highestBit(size) - SL_LOG2)) - SL_COUNT;
+	}
+
+	/**
+	 * A block of the memory space, linked both to its physical neighbours and,
+	 * when free, to the other blocks of its size class.
+	 */
+	private static class Block {
+		int base;
+		int length;
+		boolean free;
+		Block prevPhys;
+		Block nextPhys;
+		Block prevFree;
+		Block nextFree;
+
+		Block(int base, int length) {
+			this.base = base;
+			this.length = length;
+		}
+	}
+}
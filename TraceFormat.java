@@ -0,0 +1,406 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The formats of allocation trace files, which are replayed by TraceReplay and written by
+ * WorkloadGenerator, among others. A trace is a sequence of operations on blocks that are
+ * named by trace-level ids (non-negative ints): a malloc of a block of a given length, a
+ * free of a block, and a defrag.
+ * <p>
+ * The text form has one operation per line: "m id length", "f id" or "d" (or the full
+ * names malloc, free and defrag), with the fields separated by spaces or tabs. Blank lines,
+ * and lines that start with '#', are ignored. The binary form starts with MAGIC and VERSION
+ * (4 bytes each), followed by every operation as its code (1 byte) and its arguments as
+ * varints (7 bits per byte, low bits first), so an operation takes about 3 bytes. Both
+ * forms are read and written as streams, through a buffer, so a trace of any length can be
+ * replayed in constant memory. A reader recognizes the binary form by its MAGIC.
+ */
+public class TraceFormat {
+
+	public static final int MAGIC = 0x4D545243; // "MTRC"
+	public static final int VERSION = 1;
+
+	// The operation codes
+	public static final int MALLOC = 1;
+	public static final int FREE = 2;
+	public static final int DEFRAG = 3;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Reads the operations of a trace, in text or binary form, one at a time.
+	 */
+	public static final class Reader implements TraceSource, Closeable {
+		private final InputStream in;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int position;
+		private int limit;
+		private final boolean binary;
+
+		// The line of the text form that is being read
+		private long line = 1;
+
+		// The present operation
+		private int operation;
+		private int id;
+		private int length;
+
+		/**
+		 * Constructs a reader of the trace in the given stream, whose form is recognized by
+		 * its first bytes.
+		 *
+		 * @param in
+		 *        the stream of the trace
+		 * @throws IOException
+		 *         if the stream cannot be read, or holds a binary trace of another version
+		 */
+		public Reader(InputStream in) throws IOException {
+			this.in = in;
+			while (limit < 8 && fill()) {
+				// Read at least the header of a binary trace, if there is one
+			}
+			binary = limit >= 8 && fixed(0) == MAGIC;
+			if (binary) {
+				if (fixed(4) != VERSION) {
+					throw new IOException("Unsupported trace version: " + fixed(4));
+				}
+				position = 8;
+			}
+		}
+
+		/**
+		 * Checks if the trace is in binary form
+		 * @return true if the trace is binary, false if it is text.
+		 */
+		public boolean isBinary() {
+			return binary;
+		}
+
+		public boolean next() throws IOException {
+			return binary ? nextBinary() : nextText();
+		}
+
+		public int operation() {
+			return operation;
+		}
+
+		public int id() {
+			return id;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private boolean nextBinary() throws IOException {
+			if (position == limit && !fill()) {
+				return false;
+			}
+			operation = buffer[position++];
+			switch (operation) {
+				case MALLOC:
+					id = checkId(readVarint());
+					length = checkLength(readVarint());
+					return true;
+				case FREE:
+					id = checkId(readVarint());
+					return true;
+				case DEFRAG:
+					return true;
+				default:
+					throw malformed("operation code " + operation);
+			}
+		}
+
+		private int readVarint() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				if (position == limit && !fill()) {
+					throw new EOFException("Trace is truncated");
+				}
+				byte b = buffer[position++];
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw malformed("varint is too long");
+		}
+
+		// Checks an id that was read, since a 5-byte varint can hold a negative int
+		private int checkId(int value) throws IOException {
+			if (value < 0) {
+				throw malformed("negative id " + value);
+			}
+			return value;
+		}
+
+		// Checks a length that was read, so that a bad trace is reported as malformed and
+		// not by the memory space
+		private int checkLength(int value) throws IOException {
+			if (value <= 0) {
+				throw malformed("block length " + value + " is not positive");
+			}
+			return value;
+		}
+
+		private boolean nextText() throws IOException {
+			while (true) {
+				int c = skipBlanks();
+				if (c == -1) {
+					return false;
+				}
+				if (c == '\n') {
+					position++;
+					line++;
+					continue;
+				}
+				if (c == '#') {
+					while ((c = peek()) != -1 && c != '\n') {
+						position++;
+					}
+					continue;
+				}
+				operation = readOperation();
+				if (operation == MALLOC) {
+					id = readNumber();
+					length = checkLength(readNumber());
+				} else if (operation == FREE) {
+					id = readNumber();
+				}
+				c = skipBlanks();
+				if (c != -1 && c != '\n' && c != '#') {
+					throw malformed("unexpected text after the operation");
+				}
+				return true;
+			}
+		}
+
+		// Skips spaces, tabs and carriage returns, and returns the next byte, or -1 at the end
+		private int skipBlanks() throws IOException {
+			int c;
+			while ((c = peek()) == ' ' || c == '\t' || c == '\r') {
+				position++;
+			}
+			return c;
+		}
+
+		// Reads the name of an operation, in full or as its first letter, without building a string
+		private int readOperation() throws IOException {
+			int c = peek();
+			String name = (c == 'm') ? "malloc" : (c == 'f') ? "free" : (c == 'd') ? "defrag" : null;
+			if (name == null) {
+				throw malformed("unknown operation");
+			}
+			int letters = 0;
+			boolean matches = true;
+			while ((c = peek()) >= 'a' && c <= 'z') {
+				matches &= letters < name.length() && name.charAt(letters) == c;
+				letters++;
+				position++;
+			}
+			if (!matches || (letters != 1 && letters != name.length()) || (c >= '0' && c <= '9')) {
+				throw malformed("unknown operation");
+			}
+			return (name.charAt(0) == 'm') ? MALLOC : (name.charAt(0) == 'f') ? FREE : DEFRAG;
+		}
+
+		private int readNumber() throws IOException {
+			int c = skipBlanks();
+			if (c < '0' || c > '9') {
+				throw malformed("expected a number");
+			}
+			long value = 0;
+			while ((c = peek()) >= '0' && c <= '9') {
+				value = 10 * value + (c - '0');
+				if (value > Integer.MAX_VALUE) {
+					throw malformed("number is too large");
+				}
+				position++;
+			}
+			return (int) value;
+		}
+
+		private IOException malformed(String problem) {
+			if (binary) {
+				return new IOException("Malformed trace: " + problem);
+			}
+			return new IOException("Malformed trace at line " + line + ": " + problem);
+		}
+
+		// Returns the next byte without consuming it, or -1 at the end of the trace
+		private int peek() throws IOException {
+			if (position == limit && !fill()) {
+				return -1;
+			}
+			return buffer[position] & 0xFF;
+		}
+
+		// Reads more of the stream into the buffer, and returns false at the end of the stream
+		private boolean fill() throws IOException {
+			if (position > 0) {
+				System.arraycopy(buffer, position, buffer, 0, limit - position);
+				limit -= position;
+				position = 0;
+			}
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read <= 0) {
+				return false;
+			}
+			limit += read;
+			return true;
+		}
+
+		private int fixed(int offset) {
+			int value = 0;
+			for (int i = offset; i < offset + 4; i++) {
+				value = (value << 8) | (buffer[i] & 0xFF);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Writes the operations of a trace, in text or binary form.
+	 */
+	public static final class Writer implements Closeable {
+		private final OutputStream out;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+		private int position;
+		private final boolean binary;
+
+		/**
+		 * Constructs a writer of a trace to the given stream.
+		 *
+		 * @param out
+		 *        the stream to write the trace to
+		 * @param binary
+		 *        true to write the binary form, false to write the text form
+		 * @throws IOException
+		 *         if the stream cannot be written
+		 */
+		public Writer(OutputStream out, boolean binary) throws IOException {
+			this.out = out;
+			this.binary = binary;
+			if (binary) {
+				writeFixed(MAGIC);
+				writeFixed(VERSION);
+			}
+		}
+
+		/**
+		 * Writes a malloc of the block with the given id and length.
+		 */
+		public void malloc(int id, int length) throws IOException {
+			check(id);
+			if (length <= 0) {
+				throw new IllegalArgumentException("Block size must be positive");
+			}
+			ensure(32);
+			if (binary) {
+				buffer[position++] = MALLOC;
+				writeVarint(id);
+				writeVarint(length);
+			} else {
+				buffer[position++] = 'm';
+				buffer[position++] = ' ';
+				writeDecimal(id);
+				buffer[position++] = ' ';
+				writeDecimal(length);
+				buffer[position++] = '\n';
+			}
+		}
+
+		/**
+		 * Writes a free of the block with the given id.
+		 */
+		public void free(int id) throws IOException {
+			check(id);
+			ensure(32);
+			if (binary) {
+				buffer[position++] = FREE;
+				writeVarint(id);
+			} else {
+				buffer[position++] = 'f';
+				buffer[position++] = ' ';
+				writeDecimal(id);
+				buffer[position++] = '\n';
+			}
+		}
+
+		/**
+		 * Writes a defrag.
+		 */
+		public void defrag() throws IOException {
+			ensure(2);
+			if (binary) {
+				buffer[position++] = DEFRAG;
+			} else {
+				buffer[position++] = 'd';
+				buffer[position++] = '\n';
+			}
+		}
+
+		/**
+		 * Writes the buffered operations to the stream, and flushes it.
+		 */
+		public void flush() throws IOException {
+			out.write(buffer, 0, position);
+			position = 0;
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			flush();
+			out.close();
+		}
+
+		private static void check(int id) {
+			if (id < 0) {
+				throw new IllegalArgumentException("Block id must not be negative");
+			}
+		}
+
+		private void writeFixed(int value) throws IOException {
+			ensure(4);
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				buffer[position++] = (byte) (value >>> shift);
+			}
+		}
+
+		private void writeVarint(int value) {
+			while ((value & ~0x7F) != 0) {
+				buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[position++] = (byte) value;
+		}
+
+		private void writeDecimal(int value) {
+			int digits = 1;
+			for (int rest = value / 10; rest > 0; rest /= 10) {
+				digits++;
+			}
+			for (int i = position + digits - 1; i >= position; i--) {
+				buffer[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			position += digits;
+		}
+
+		// Makes room for the given number of bytes in the buffer
+		private void ensure(int bytes) throws IOException {
+			if (position + bytes > buffer.length) {
+				out.write(buffer, 0, position);
+				position = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,351 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Replays an allocation trace through a memory space, and reports its throughput, the
+ * latency percentiles of every kind of operation, the peak of the live words, and the
+ * fragmentation of the free memory over time.
+ * <p>
+ * The trace is streamed (see TraceFormat), so it is never held in memory: a trace of
+ * hundreds of millions of operations needs only the tables that map the ids of its live
+ * blocks to their addresses and lengths. A malloc that fails leaves its id unmapped, and a
+ * free of an unmapped id is skipped; both are counted. The latencies are recorded in a
+ * histogram with 16 buckets per power of two, so the percentiles are accurate to about 6%.
+ * Every sampleInterval operations, and at the end, a sample of the live words, the free
+ * blocks and the external fragmentation is taken; samples scan the free list, and are not
+ * included in the latencies.
+ *
+ * Usage: java TraceReplay trace size [engine-or-policy [sample-interval]]
+ * where engine-or-policy is one of the engines or the placement policies of
+ * MemorySpaceBenchmark (by default, first-fit), and sample-interval is in operations
+ * (by default, 1000000).
+ */
+public class TraceReplay {
+
+	// The names of the operations, by their trace codes
+	private static final String[] OPERATIONS = { "", "malloc", "free", "defrag" };
+
+	// The memory space that replays the trace
+	private final MemorySpace space;
+
+	// The addresses and lengths of the live blocks, by their trace ids
+	private final IntIntHashMap addresses = new IntIntHashMap();
+	private final IntIntHashMap lengths = new IntIntHashMap();
+
+	// The latencies of the operations, by their trace codes
+	private final LatencyHistogram[] latencies = {
+			null, new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram() };
+
+	// The number of operations between samples
+	private long sampleInterval = 1000000;
+
+	private long operations;
+	private long failedMallocs;
+	private long skippedFrees;
+	private long liveWords;
+	private long peakLiveWords;
+	private long elapsedNanos;
+
+	// The samples: operations so far, live words, free blocks and external fragmentation
+	private long[] sampleOperations = new long[64];
+	private long[] sampleLiveWords = new long[64];
+	private int[] sampleFreeBlocks = new int[64];
+	private double[] sampleFragmentation = new double[64];
+	private int sampleCount;
+
+	/**
+	 * Constructs a new replay of traces through the given memory space.
+	 *
+	 * @param space
+	 *        the memory space that performs the operations of the traces
+	 */
+	public TraceReplay(MemorySpace space) {
+		if (space == null) {
+			throw new NullPointerException("MemorySpace cannot be null");
+		}
+		this.space = space;
+	}
+
+	/**
+	 * Sets the number of operations between samples of the live words and the fragmentation.
+	 *
+	 * @param sampleInterval
+	 *        the number of operations between samples
+	 */
+	public void setSampleInterval(long sampleInterval) {
+		if (sampleInterval <= 0) {
+			throw new IllegalArgumentException("Sample interval must be positive");
+		}
+		this.sampleInterval = sampleInterval;
+	}
+
+	/**
+	 * Replays all the operations of a trace, read from a file or generated. Replaying several
+	 * traces continues the counts, the latencies and the samples of the previous ones.
+	 *
+	 * @param trace
+	 *        the operations of the trace
+	 * @throws IOException
+	 *         if the trace cannot be read, is malformed, or allocates a live id again
+	 */
+	public void replay(TraceSource trace) throws IOException {
+		long start = System.nanoTime();
+		long nextSample = (operations / sampleInterval + 1) * sampleInterval;
+		while (trace.next()) {
+			int operation = trace.operation();
+			long before;
+			switch (operation) {
+				case TraceFormat.MALLOC: {
+					int id = trace.id();
+					int length = trace.length();
+					if (addresses.get(id) != -1) {
+						throw new IOException("Trace allocates the live block " + id + " again, at operation " + operations);
+					}
+					before = System.nanoTime();
+					int address = space.malloc(length);
+					latencies[operation].record(System.nanoTime() - before);
+					if (address == -1) {
+						failedMallocs++;
+					} else {
+						addresses.put(id, address);
+						lengths.put(id, length);
+						liveWords += length;
+						peakLiveWords = Math.max(peakLiveWords, liveWords);
+					}
+					break;
+				}
+				case TraceFormat.FREE: {
+					int id = trace.id();
+					int address = addresses.remove(id);
+					if (address == -1) {
+						skippedFrees++;
+						break;
+					}
+					before = System.nanoTime();
+					space.free(address);
+					latencies[operation].record(System.nanoTime() - before);
+					liveWords -= lengths.remove(id);
+					break;
+				}
+				default:
+					before = System.nanoTime();
+					space.defrag();
+					latencies[operation].record(System.nanoTime() - before);
+			}
+			operations++;
+			if (operations == nextSample) {
+				sample();
+				nextSample += sampleInterval;
+			}
+		}
+		if (sampleCount == 0 || sampleOperations[sampleCount - 1] != operations) {
+			sample();
+		}
+		elapsedNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Gets the number of operations replayed
+	 * @return the number of operations.
+	 */
+	public long getOperations() {
+		return operations;
+	}
+
+	/**
+	 * Gets the number of mallocs that the memory space could not serve
+	 * @return the number of failed mallocs.
+	 */
+	public long getFailedMallocs() {
+		return failedMallocs;
+	}
+
+	/**
+	 * Gets the number of frees of ids that were not live, which were skipped
+	 * @return the number of skipped frees.
+	 */
+	public long getSkippedFrees() {
+		return skippedFrees;
+	}
+
+	/**
+	 * Gets the largest number of words that were allocated at once
+	 * @return the peak of the live words.
+	 */
+	public long getPeakLiveWords() {
+		return peakLiveWords;
+	}
+
+	/**
+	 * Gets the throughput of the replay, including the reading of the trace
+	 * @return the operations per second.
+	 */
+	public double getOpsPerSecond() {
+		return (elapsedNanos == 0) ? 0 : operations * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * Returns the latency below which the given fraction of the operations of a kind took.
+	 *
+	 * @param operation
+	 *        the kind of operation: TraceFormat.MALLOC, FREE or DEFRAG
+	 * @param fraction
+	 *        the fraction of the operations, between 0 and 1, for example 0.99
+	 * @return the latency, in nanoseconds, or 0 if there were no such operations
+	 */
+	public long getLatency(int operation, double fraction) {
+		return latencies[operation].percentile(fraction);
+	}
+
+	/**
+	 * Prints the report of the replay: the counts, the throughput, the latency percentiles,
+	 * and the samples over time.
+	 *
+	 * @param out
+	 *        the stream to print to
+	 */
+	public void report(PrintStream out) {
+		long allocatorNanos = 0;
+		for (int operation = TraceFormat.MALLOC; operation <= TraceFormat.DEFRAG; operation++) {
+			allocatorNanos += latencies[operation].getTotal();
+		}
+		out.printf("operations %d, failed mallocs %d, skipped frees %d, peak live words %d%n",
+				operations, failedMallocs, skippedFrees, peakLiveWords);
+		out.printf("replay %.0f ops/sec, memory space alone %.0f ops/sec%n", getOpsPerSecond(),
+				(allocatorNanos == 0) ? 0 : operations * 1e9 / allocatorNanos);
+		out.printf("%-8s %12s %10s %10s %10s %10s %12s%n", "latency", "count", "p50 ns", "p90 ns", "p99 ns",
+				"p99.9 ns", "max ns");
+		for (int operation = TraceFormat.MALLOC; operation <= TraceFormat.DEFRAG; operation++) {
+			LatencyHistogram histogram = latencies[operation];
+			out.printf("%-8s %12d %10d %10d %10d %10d %12d%n", OPERATIONS[operation], histogram.getCount(),
+					histogram.percentile(0.5), histogram.percentile(0.9), histogram.percentile(0.99),
+					histogram.percentile(0.999), histogram.getMax());
+		}
+		out.printf("%-14s %12s %12s %10s%n", "operations", "live words", "free blocks", "external");
+		for (int i = 0; i < sampleCount; i++) {
+			out.printf("%-14d %12d %12d %10.3f%n", sampleOperations[i], sampleLiveWords[i],
+					sampleFreeBlocks[i], sampleFragmentation[i]);
+		}
+	}
+
+	// Records the live words, the free blocks and the external fragmentation
+	private void sample() {
+		if (sampleCount == sampleOperations.length) {
+			int capacity = 2 * sampleCount;
+			sampleOperations = Arrays.copyOf(sampleOperations, capacity);
+			sampleLiveWords = Arrays.copyOf(sampleLiveWords, capacity);
+			sampleFreeBlocks = Arrays.copyOf(sampleFreeBlocks, capacity);
+			sampleFragmentation = Arrays.copyOf(sampleFragmentation, capacity);
+		}
+		LinkedList freeBlocks = space.freeBlocks();
+		long freeWords = 0;
+		long largest = 0;
+		ListIterator iterator = freeBlocks.iterator();
+		while (iterator.hasNext()) {
+			MemoryBlock block = iterator.next();
+			freeWords += block.getLength();
+			largest = Math.max(largest, block.getLength());
+		}
+		sampleOperations[sampleCount] = operations;
+		sampleLiveWords[sampleCount] = liveWords;
+		sampleFreeBlocks[sampleCount] = freeBlocks.getSize();
+		sampleFragmentation[sampleCount] = (freeWords == 0) ? 0 : 1 - (double) largest / freeWords;
+		sampleCount++;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: java TraceReplay trace size [engine-or-policy [sample-interval]]");
+			return;
+		}
+		int maxSize = Integer.parseInt(args[1]);
+		String name = (args.length > 2) ? args[2] : "first-fit";
+		MemorySpace space = name.endsWith("-fit")
+				? new MemorySpace(maxSize, MemorySpaceBenchmark.createPolicy(name))
+				: MemorySpaceBenchmark.createSpace(name, maxSize);
+		TraceReplay replay = new TraceReplay(space);
+		if (args.length > 3) {
+			replay.setSampleInterval(Long.parseLong(args[3]));
+		}
+		try (TraceFormat.Reader trace = new TraceFormat.Reader(Files.newInputStream(Paths.get(args[0])))) {
+			replay.replay(trace);
+		} catch (IOException e) {
+			System.out.println("Replay failed after " + replay.getOperations() + " operations: " + e.getMessage());
+			return;
+		}
+		replay.report(System.out);
+	}
+
+	/**
+	 * A histogram of latencies in nanoseconds. Latencies below 32 have a bucket each, and
+	 * every higher power of two is split into 16 buckets of equal width.
+	 */
+	private static final class LatencyHistogram {
+		private static final int SUB_BUCKETS = 16;
+		private static final int EXACT = 2 * SUB_BUCKETS;
+
+		private final long[] counts = new long[EXACT + (63 - 5) * SUB_BUCKETS];
+		private long count;
+		private long total;
+		private long max;
+
+		void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			counts[bucket(nanos)]++;
+			count++;
+			total += nanos;
+			max = Math.max(max, nanos);
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		long getTotal() {
+			return total;
+		}
+
+		long getMax() {
+			return max;
+		}
+
+		// Returns the upper edge of the bucket that holds the given fraction of the latencies
+		long percentile(double fraction) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(fraction * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(max, upperEdge(i));
+				}
+			}
+			return max;
+		}
+
+		private static int bucket(long nanos) {
+			if (nanos < EXACT) {
+				return (int) nanos;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(nanos); // at least 5
+			int sub = (int) (nanos >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+			return EXACT + (exponent - 5) * SUB_BUCKETS + sub;
+		}
+
+		private static long upperEdge(int bucket) {
+			if (bucket < EXACT) {
+				return bucket;
+			}
+			int exponent = (bucket - EXACT) / SUB_BUCKETS + 5;
+			int sub = (bucket - EXACT) % SUB_BUCKETS;
+			return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 4)) - 1;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+import java.io.IOException;
+
+/**
+ * A stream of allocation operations on blocks that are named by trace-level ids: a malloc
+ * of a block of a given length, a free of a block, and a defrag. The operations are read
+ * one at a time, so a stream of any length takes constant memory. A trace file is read by
+ * a TraceFormat.Reader, and a synthetic stream is produced by a WorkloadGenerator; either
+ * one can be replayed through a memory space by TraceReplay.
+ */
+public interface TraceSource {
+
+	/**
+	 * Moves to the next operation of the stream.
+	 *
+	 * @return true if there is a next operation, or false at the end of the stream
+	 * @throws IOException
+	 *         if the operation cannot be read, or is malformed
+	 */
+	boolean next() throws IOException;
+
+	/**
+	 * Returns the code of the present operation: TraceFormat.MALLOC, FREE or DEFRAG.
+	 */
+	int operation();
+
+	/**
+	 * Returns the block id of the present malloc or free.
+	 */
+	int id();
+
+	/**
+	 * Returns the length of the present malloc.
+	 */
+	int length();
+}
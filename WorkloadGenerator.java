@@ -0,0 +1,303 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A seeded generator of synthetic allocation workloads, as a stream of operations that
+ * TraceReplay replays directly, or that writeTo writes as a trace file.
+ * <p>
+ * A workload combines a distribution of the block lengths with a shape, which sets the
+ * number of live blocks that the workload aims at over time, from 0 to maxLive:
+ * RAMP grows steadily to maxLive at the end; PEAK grows to maxLive at the middle and then
+ * drains; PLATEAU rises over the first tenth, holds maxLive, and drains over the last tenth;
+ * PRODUCER_CONSUMER follows the plateau, but frees the blocks in the order in which they
+ * were allocated, as a consumer that lags behind a producer, while the other shapes free a
+ * random live block. Every operation is a malloc with probability 3/4 when the workload is
+ * below its aim, 1/4 when it is above, and 1/2 when it is at its aim, so the live blocks
+ * churn around the shape. The ids of freed blocks are reused, so the ids stay below the
+ * largest number of live blocks. A workload may also defrag at a fixed interval, as long-running
+ * programs do. The same seed always generates the same workload.
+ *
+ * Usage: java WorkloadGenerator shape sizes operations file [seed [form [maxLive]]]
+ * where shape is ramp, peak, plateau or producer-consumer, and sizes is uniform (1 to 64
+ * words), exponential (mean 16, at most 1024 words) or bimodal (90% of 1 to 16 words, 10%
+ * of 256 to 1024 words). The trace is written in binary form, unless form is text. maxLive
+ * is defaultMaxLive(operations), unless it is given.
+ */
+public class WorkloadGenerator implements TraceSource {
+
+	/**
+	 * The shapes of the number of live blocks over time.
+	 */
+	public enum Shape {
+		RAMP, PEAK, PLATEAU, PRODUCER_CONSUMER
+	}
+
+	/**
+	 * A distribution of block lengths.
+	 */
+	public interface SizeDistribution {
+
+		/**
+		 * Draws a block length, in words, which is positive.
+		 *
+		 * @param random
+		 *        the source of randomness
+		 * @return the block length
+		 */
+		int next(Random random);
+	}
+
+	/**
+	 * Returns the distribution of lengths drawn uniformly between min and max, inclusive.
+	 */
+	public static SizeDistribution uniform(int min, int max) {
+		if (min <= 0 || max < min) {
+			throw new IllegalArgumentException("Lengths must be positive, and min at most max");
+		}
+		return random -> min + random.nextInt(max - min + 1);
+	}
+
+	/**
+	 * Returns the exponential distribution of lengths with the given mean, rounded up and
+	 * capped at max, so that most blocks are small and a few are long.
+	 */
+	public static SizeDistribution exponential(double mean, int max) {
+		if (mean <= 0 || max <= 0) {
+			throw new IllegalArgumentException("Mean and max must be positive");
+		}
+		return random -> (int) Math.max(1, Math.min(max, Math.ceil(-mean * Math.log(1 - random.nextDouble()))));
+	}
+
+	/**
+	 * Returns the distribution that draws, with probability largeFraction, a length between
+	 * largeMin and largeMax, and otherwise a length between 1 and smallMax.
+	 */
+	public static SizeDistribution bimodal(int smallMax, int largeMin, int largeMax, double largeFraction) {
+		SizeDistribution small = uniform(1, smallMax);
+		SizeDistribution large = uniform(largeMin, largeMax);
+		return random -> (random.nextDouble() < largeFraction) ? large.next(random) : small.next(random);
+	}
+
+	/**
+	 * Returns the named distribution of the usage: uniform, exponential or bimodal.
+	 */
+	public static SizeDistribution sizes(String name) {
+		switch (name) {
+			case "uniform":
+				return uniform(1, 64);
+			case "exponential":
+				return exponential(16, 1024);
+			case "bimodal":
+				return bimodal(16, 256, 1024, 0.1);
+			default:
+				throw new IllegalArgumentException("Unknown size distribution: " + name);
+		}
+	}
+
+	/**
+	 * Returns the named shape of the usage: ramp, peak, plateau or producer-consumer.
+	 */
+	public static Shape shape(String name) {
+		return Shape.valueOf(name.toUpperCase().replace('-', '_'));
+	}
+
+	// The largest default number of live blocks, so that their ids fit in arrays
+	private static final int MAX_DEFAULT_LIVE = 1 << 26;
+
+	private final Shape shape;
+	private final SizeDistribution sizes;
+	private final long operations;
+	private final int maxLive;
+	private final Random random;
+
+	// The number of operations between defrags, or 0 if the workload never defrags
+	private long defragInterval;
+
+	// The ids of the live blocks: in allocation order, in a ring, for PRODUCER_CONSUMER,
+	// and in any order otherwise
+	private int[] live = new int[64];
+	private int liveStart;
+	private int liveCount;
+
+	// The ids of freed blocks, for reuse, and the next id never used
+	private int[] freeIds = new int[64];
+	private int freeIdCount;
+	private int nextId;
+
+	// The number of operations generated, and the present operation
+	private long generated;
+	private int operation;
+	private int id;
+	private int length;
+
+	/**
+	 * Constructs a generator of a workload.
+	 *
+	 * @param shape
+	 *        the shape of the number of live blocks over time
+	 * @param sizes
+	 *        the distribution of the block lengths
+	 * @param operations
+	 *        the number of operations of the workload
+	 * @param maxLive
+	 *        the number of live blocks at the top of the shape
+	 * @param seed
+	 *        the seed of the workload
+	 */
+	public WorkloadGenerator(Shape shape, SizeDistribution sizes, long operations, int maxLive, long seed) {
+		if (shape == null || sizes == null) {
+			throw new NullPointerException("Shape and sizes cannot be null");
+		}
+		if (operations < 0 || maxLive <= 0) {
+			throw new IllegalArgumentException("Operations must not be negative, and maxLive must be positive");
+		}
+		this.shape = shape;
+		this.sizes = sizes;
+		this.operations = operations;
+		this.maxLive = maxLive;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Makes the workload defrag once every given number of operations; every defrag takes
+	 * the place of a malloc or a free.
+	 *
+	 * @param defragInterval
+	 *        the number of operations between defrags, or 0 to never defrag (the default)
+	 */
+	public void setDefragInterval(long defragInterval) {
+		if (defragInterval < 0) {
+			throw new IllegalArgumentException("Defrag interval must not be negative");
+		}
+		this.defragInterval = defragInterval;
+	}
+
+	public boolean next() {
+		if (generated == operations) {
+			return false;
+		}
+		if (defragInterval > 0 && generated % defragInterval == defragInterval - 1) {
+			operation = TraceFormat.DEFRAG;
+			generated++;
+			return true;
+		}
+		long target = target((double) generated / operations);
+		int mallocPercent = (liveCount < target) ? 75 : (liveCount > target) ? 25 : 50;
+		if (liveCount == 0 || random.nextInt(100) < mallocPercent) {
+			operation = TraceFormat.MALLOC;
+			id = (freeIdCount > 0) ? freeIds[--freeIdCount] : nextId++;
+			length = sizes.next(random);
+			addLive(id);
+		} else {
+			operation = TraceFormat.FREE;
+			id = removeLive();
+			if (freeIdCount == freeIds.length) {
+				freeIds = Arrays.copyOf(freeIds, 2 * freeIds.length);
+			}
+			freeIds[freeIdCount++] = id;
+		}
+		generated++;
+		return true;
+	}
+
+	public int operation() {
+		return operation;
+	}
+
+	public int id() {
+		return id;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Writes the remaining operations of the workload to a trace.
+	 *
+	 * @param writer
+	 *        the writer of the trace
+	 * @throws IOException
+	 *         if the trace cannot be written
+	 */
+	public void writeTo(TraceFormat.Writer writer) throws IOException {
+		while (next()) {
+			if (operation == TraceFormat.MALLOC) {
+				writer.malloc(id, length);
+			} else if (operation == TraceFormat.FREE) {
+				writer.free(id);
+			} else {
+				writer.defrag();
+			}
+		}
+		writer.flush();
+	}
+
+	// Returns the number of live blocks that the shape aims at, at the given fraction of the workload
+	private long target(double progress) {
+		switch (shape) {
+			case RAMP:
+				return Math.round(maxLive * progress);
+			case PEAK:
+				return Math.round(maxLive * (1 - Math.abs(2 * progress - 1)));
+			default:
+				return Math.round(maxLive * Math.min(1, Math.min(10 * progress, 10 * (1 - progress))));
+		}
+	}
+
+	private void addLive(int id) {
+		if (liveCount == live.length) {
+			// Unroll the ring into a larger array
+			int[] larger = new int[2 * live.length];
+			for (int i = 0; i < liveCount; i++) {
+				larger[i] = live[(liveStart + i) % live.length];
+			}
+			live = larger;
+			liveStart = 0;
+		}
+		live[(liveStart + liveCount) % live.length] = id;
+		liveCount++;
+	}
+
+	// Removes the oldest live block for PRODUCER_CONSUMER, and a random one otherwise
+	private int removeLive() {
+		int index = (shape == Shape.PRODUCER_CONSUMER) ? liveStart
+				: (liveStart + random.nextInt(liveCount)) % live.length;
+		int removed = live[index];
+		// Fill the hole with the oldest block, which keeps the others in a ring
+		live[index] = live[liveStart];
+		liveStart = (liveStart + 1) % live.length;
+		liveCount--;
+		return removed;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 4) {
+			System.out.println("Usage: java WorkloadGenerator shape sizes operations file [seed [form [maxLive]]]");
+			return;
+		}
+		long operations = Long.parseLong(args[2]);
+		long seed = (args.length > 4) ? Long.parseLong(args[4]) : 1;
+		boolean binary = args.length <= 5 || !args[5].equals("text");
+		int maxLive = (args.length > 6) ? Integer.parseInt(args[6]) : defaultMaxLive(operations);
+		WorkloadGenerator generator = new WorkloadGenerator(shape(args[0]), sizes(args[1]), operations,
+				maxLive, seed);
+		try (TraceFormat.Writer writer = new TraceFormat.Writer(Files.newOutputStream(Paths.get(args[3])), binary)) {
+			generator.writeTo(writer);
+		} catch (IOException e) {
+			System.out.println("Could not write the trace: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the number of live blocks at the top of the shapes of the usage: a sixteenth
+	 * of the operations, so that a ramp can reach it, and a longer workload keeps more
+	 * blocks live (and leaves a longer free list) instead of repeating a short one.
+	 */
+	public static int defaultMaxLive(long operations) {
+		return (int) Math.max(1, Math.min(MAX_DEFAULT_LIVE, operations / 16));
+	}
+}
@@ -0,0 +1,26 @@
+/**
+ * The worst-fit placement policy: malloc takes the largest free block, so that the
+ * remainder left after splitting it is as large as possible.
+ */
+public class WorstFitPolicy extends SizeIndexedPolicy {
+
+	public Node select(LinkedList freeList, int length) {
+		Node largest = nodeOf(bySize.lastEntry());
+		return (largest != null && largest.block.getLength() >= length) ? largest : null;
+	}
+
+	/**
+	 * Takes the largest free block which holds the aligned block.
+	 */
+	public Node selectAligned(LinkedList freeList, int length, int alignment) {
+		for (Node node : bySize.descendingMap().values()) {
+			if (node.block.getLength() < length) {
+				return null;
+			}
+			if (PlacementPolicy.fitsAligned(node.block, length, alignment)) {
+				return node;
+			}
+		}
+		return null;
+	}
+}